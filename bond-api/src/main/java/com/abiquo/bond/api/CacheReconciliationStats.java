@@ -0,0 +1,143 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import com.google.common.base.Objects;
+
+/**
+ * Snapshot of the outcome of the most recent background reconciliation of the VM link cache. An
+ * instance is immutable; a new one is published by {@link NameToVMLinks} each time a crawl
+ * completes or fails.
+ */
+public class CacheReconciliationStats
+{
+    private final LocalDateTime lastSuccess;
+
+    private final long lastDurationMillis;
+
+    private final int added;
+
+    private final int removed;
+
+    private final int updated;
+
+    private final int skipped;
+
+    private final long consecutiveFailures;
+
+    CacheReconciliationStats(final LocalDateTime lastSuccess, final long lastDurationMillis,
+        final int added, final int removed, final int updated, final int skipped,
+        final long consecutiveFailures)
+    {
+        this.lastSuccess = lastSuccess;
+        this.lastDurationMillis = lastDurationMillis;
+        this.added = added;
+        this.removed = removed;
+        this.updated = updated;
+        this.skipped = skipped;
+        this.consecutiveFailures = consecutiveFailures;
+    }
+
+    /**
+     * Returns a copy of these statistics recording a failed crawl. The diff sizes and the time of
+     * the last successful crawl are kept so that staleness keeps growing.
+     */
+    CacheReconciliationStats failed()
+    {
+        return new CacheReconciliationStats(lastSuccess,
+            lastDurationMillis,
+            added,
+            removed,
+            updated,
+            skipped,
+            consecutiveFailures + 1);
+    }
+
+    /**
+     * @return the time at which the cache was last known to match the Abiquo API
+     */
+    public LocalDateTime getLastSuccess()
+    {
+        return lastSuccess;
+    }
+
+    /**
+     * @return how long it is since the cache was last known to match the Abiquo API
+     */
+    public Duration getStaleness()
+    {
+        return Duration.between(lastSuccess, LocalDateTime.now());
+    }
+
+    public long getLastDurationMillis()
+    {
+        return lastDurationMillis;
+    }
+
+    public int getAdded()
+    {
+        return added;
+    }
+
+    public int getRemoved()
+    {
+        return removed;
+    }
+
+    public int getUpdated()
+    {
+        return updated;
+    }
+
+    /**
+     * @return the number of VMs left untouched because events changed them while the crawl was
+     *         running
+     */
+    public int getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * @return the total number of changes applied by the last successful crawl
+     */
+    public int getDiffSize()
+    {
+        return added + removed + updated;
+    }
+
+    public long getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this).add("last success", lastSuccess)
+            .add("duration ms", lastDurationMillis).add("added", added).add("removed", removed)
+            .add("updated", updated).add("skipped", skipped)
+            .add("consecutive failures", consecutiveFailures).toString();
+    }
+}
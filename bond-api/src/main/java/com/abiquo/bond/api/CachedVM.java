@@ -0,0 +1,125 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.abiquo.model.rest.RESTLink;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+
+/**
+ * An entry of the VM link cache. Instances are immutable: any change to a VM results in a new
+ * instance being stored in the cache.
+ */
+public final class CachedVM
+{
+    private final int id;
+
+    private final String name;
+
+    private final String hypervisor;
+
+    private final Integer enterpriseId;
+
+    private final Map<String, RESTLink> links;
+
+    CachedVM(final int id, final String name, final String hypervisor,
+        final Integer enterpriseId, final Map<String, RESTLink> links)
+    {
+        this.id = id;
+        this.name = name;
+        this.hypervisor = hypervisor;
+        this.enterpriseId = enterpriseId;
+        this.links = Collections.unmodifiableMap(new HashMap<>(links));
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the name of the physical machine the VM is deployed on, if known
+     */
+    public Optional<String> getHypervisor()
+    {
+        return Optional.fromNullable(hypervisor);
+    }
+
+    public Optional<Integer> getEnterpriseId()
+    {
+        return Optional.fromNullable(enterpriseId);
+    }
+
+    /**
+     * @param linktype The value of the 'rel' attribute for the required link
+     * @return the link, or an absent Optional if the link isn't cached for this VM
+     */
+    public Optional<RESTLink> getLink(final String linktype)
+    {
+        return Optional.fromNullable(links.get(linktype));
+    }
+
+    Map<String, RESTLink> getLinks()
+    {
+        return links;
+    }
+
+    /**
+     * Checks whether two entries describe the same VM in the same way. Links are compared by href
+     * only as RESTLink doesn't define equality.
+     */
+    boolean sameAs(final CachedVM other)
+    {
+        if (id != other.id || !Objects.equal(name, other.name)
+            || !Objects.equal(hypervisor, other.hypervisor)
+            || !Objects.equal(enterpriseId, other.enterpriseId)
+            || !links.keySet().equals(other.links.keySet()))
+        {
+            return false;
+        }
+        for (Map.Entry<String, RESTLink> entry : links.entrySet())
+        {
+            if (!Objects.equal(entry.getValue().getHref(), other.links.get(entry.getKey())
+                .getHref()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this).add("id", id).add("name", name)
+            .add("hypervisor", hypervisor).add("enterprise", enterpriseId).omitNullValues()
+            .toString();
+    }
+}
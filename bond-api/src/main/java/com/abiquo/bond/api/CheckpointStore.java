@@ -0,0 +1,242 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Persists the timestamp of the last event processed by all the plugins to a local file, so that
+ * the client can carry on from where it left off after a restart or a crash without the wrapper
+ * having to save it.
+ * <p>
+ * The timestamp is written to a temporary file in the same directory, forced to disk and then
+ * renamed over the checkpoint file, so the file always holds either the previous or the new value
+ * in full.
+ */
+class CheckpointStore
+{
+    private final static Logger logger = LoggerFactory.getLogger(CheckpointStore.class);
+
+    private final Path file;
+
+    private final Path tmpfile;
+
+    private ScheduledExecutorService flusher;
+
+    private Supplier<LocalDateTime> watermark;
+
+    private LocalDateTime lastWritten;
+
+    private WrapperNotification wrapperNotifications;
+
+    /**
+     * @param file the checkpoint file. Its directory must exist.
+     */
+    CheckpointStore(final Path file)
+    {
+        this.file = file.toAbsolutePath();
+        this.tmpfile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    }
+
+    void setNotificationHandler(final WrapperNotification handler)
+    {
+        wrapperNotifications = handler;
+    }
+
+    /**
+     * Reads the last saved checkpoint.
+     * 
+     * @return the saved timestamp, or absent if there is no checkpoint file or it can't be read
+     */
+    synchronized Optional<LocalDateTime> read()
+    {
+        if (!Files.exists(file))
+        {
+            logger.info("No checkpoint found at {}", file);
+            return Optional.absent();
+        }
+        try
+        {
+            String content = new String(Files.readAllBytes(file), UTF_8).trim();
+            LocalDateTime checkpoint =
+                LocalDateTime.parse(content, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+            lastWritten = checkpoint;
+            logger.info("Read checkpoint {} from {}", checkpoint, file);
+            return Optional.of(checkpoint);
+        }
+        catch (IOException | DateTimeParseException e)
+        {
+            logger.warn("Unable to read checkpoint from " + file, e);
+            notifyWrapper("Unable to read checkpoint from " + file, e);
+            return Optional.absent();
+        }
+    }
+
+    /**
+     * Saves a checkpoint if it differs from the last one saved.
+     * 
+     * @param checkpoint timestamp of the last event processed
+     * @throws IOException if the checkpoint could not be written
+     */
+    synchronized void write(final LocalDateTime checkpoint) throws IOException
+    {
+        if (checkpoint == null || checkpoint.equals(lastWritten))
+        {
+            return;
+        }
+
+        ByteBuffer content =
+            ByteBuffer.wrap(checkpoint.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME).getBytes(
+                UTF_8));
+        try (FileChannel channel =
+            FileChannel.open(tmpfile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            while (content.hasRemaining())
+            {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+
+        try
+        {
+            Files.move(tmpfile, file, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            logger.debug("Atomic rename not supported for {}, replacing the file instead", file);
+            Files.move(tmpfile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory();
+
+        lastWritten = checkpoint;
+        logger.debug("Checkpoint {} written to {}", checkpoint, file);
+    }
+
+    /**
+     * Makes the rename durable. Not every platform allows a directory to be opened, in which case
+     * the rename is left to be flushed by the operating system.
+     */
+    private void syncDirectory()
+    {
+        try (FileChannel dir = FileChannel.open(file.getParent(), StandardOpenOption.READ))
+        {
+            dir.force(true);
+        }
+        catch (IOException e)
+        {
+            logger.trace("Unable to sync directory {}", file.getParent(), e);
+        }
+    }
+
+    /**
+     * Starts saving the watermark at fixed intervals.
+     * 
+     * @param watermark supplies the timestamp of the last event processed by all the plugins
+     * @param period time between saves
+     * @param unit unit of the period
+     */
+    synchronized void start(final Supplier<LocalDateTime> watermark, final long period,
+        final TimeUnit unit)
+    {
+        if (flusher == null)
+        {
+            this.watermark = watermark;
+            flusher =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("ABQ_CHECKPOINT").setDaemon(true).build());
+            flusher.scheduleWithFixedDelay(this::flush, period, period, unit);
+            logger.debug("Saving checkpoint to {} at {} {} intervals", new Object[] {file, period,
+            unit.toString().toLowerCase()});
+        }
+    }
+
+    /**
+     * Stops the periodic saves and saves the current watermark one last time.
+     */
+    void stop()
+    {
+        ScheduledExecutorService stopping;
+        synchronized (this)
+        {
+            stopping = flusher;
+            flusher = null;
+        }
+        if (stopping != null)
+        {
+            stopping.shutdown();
+            try
+            {
+                stopping.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+        }
+    }
+
+    private void flush()
+    {
+        try
+        {
+            write(watermark.get());
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to write checkpoint to " + file, e);
+            notifyWrapper("Unable to write checkpoint to " + file, e);
+        }
+    }
+
+    private void notifyWrapper(final String msg, final Throwable t)
+    {
+        if (wrapperNotifications != null)
+        {
+            wrapperNotifications.notification(msg, t);
+        }
+    }
+}
@@ -22,7 +22,8 @@ package com.abiquo.bond.api;
 
 /**
  * Any class that is designed to handle messages from the outbound api should implement this
- * interface
+ * interface. A handler that can't keep up with the messages signals this back to the connector
+ * passing them on through {@link MConnector#pause} and {@link MConnector#resume}.
  */
 public interface CommsHandler
 {
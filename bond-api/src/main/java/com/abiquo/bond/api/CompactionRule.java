@@ -0,0 +1,38 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+/**
+ * Enumeration of the rules that can be applied to compact the events replayed from the event store
+ * before they are dispatched to the plugins.
+ * <p>
+ * COLLAPSE_METADATA_CHANGES: of several backup (metadata modified) events for the same VM only the
+ * latest is dispatched, as it holds the VM's current backup configuration.
+ * <p>
+ * CANCEL_DEPLOY_UNDEPLOY: for a VM deployed and later undeployed within the backlog, the deploy
+ * and the events after it are dropped, as there is nothing left for the plugins to act on. The
+ * undeploy is still dispatched: the replay may start before a deploy that had already reached the
+ * plugins, and they must still be told to clean up after the VM.
+ */
+public enum CompactionRule
+{
+    COLLAPSE_METADATA_CHANGES, CANCEL_DEPLOY_UNDEPLOY;
+}
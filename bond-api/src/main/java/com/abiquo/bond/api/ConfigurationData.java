@@ -20,11 +20,22 @@
  */
 package com.abiquo.bond.api;
 
+import java.io.File;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.abiquo.bond.api.event.APIEvent;
+import com.abiquo.bond.api.event.BackupVMEvent;
+import com.abiquo.bond.api.event.RestoreVMEvent;
+
 /**
  * This class represents the configuration data required by the OutboundAPIClient class. An instance
  * of this class is passed to the OutboundAPIClient constructor. This is used instead of a
@@ -77,6 +88,13 @@ public class ConfigurationData
      */
     private String connectorname = "com.abiquo.bond.api.connector.WAsyncConnector";
 
+    /**
+     * Class that will be used to discover the VMs held in the VM link cache. Any such class needs
+     * to implement the {@link com.abiquo.bond.api.crawl.VMCrawlStrategy} interface. The default is
+     * {@link com.abiquo.bond.api.crawl.HierarchyCrawlStrategy}
+     */
+    private String crawlstrategyname = "com.abiquo.bond.api.crawl.HierarchyCrawlStrategy";
+
     /**
      * Date of the last message handled by the outbound api client. This will be used by the client
      * when it starts up to fetch any missed messages since the last time it ran. If this value is
@@ -84,6 +102,186 @@ public class ConfigurationData
      */
     private LocalDateTime lastProcessedEvent;
 
+    /**
+     * Time between background re-crawls of the Abiquo API used to correct the VM link cache. The
+     * default is 60 minutes. A value of zero disables the reconciliation.
+     */
+    private long vmCacheReconcilePeriod = 60;
+
+    private TimeUnit vmCacheReconcileTimeUnit = TimeUnit.MINUTES;
+
+    /**
+     * Pause in milliseconds between the API requests made by a background re-crawl, so that it
+     * doesn't compete with event processing. The default is 200ms.
+     */
+    private long vmCacheReconcilePacing = 200;
+
+    /**
+     * Number of events requested per page when fetching missed events from the event store at
+     * start up. Larger pages mean fewer round trips to the server. The default is 500.
+     */
+    private int eventStorePageSize = 500;
+
+    /**
+     * Number of time windows the range of missed events is split into. The windows are fetched from
+     * the event store in parallel and merged back into timestamp order. The default is 4.
+     */
+    private int eventStoreReplayWindows = 4;
+
+    /**
+     * Rules used to compact the events replayed from the event store before they are dispatched.
+     * The default is no rules, which disables compaction.
+     * 
+     * @see com.abiquo.bond.api.CompactionRule
+     */
+    private EnumSet<CompactionRule> replayCompactionRules = EnumSet.noneOf(CompactionRule.class);
+
+    /**
+     * Maximum number of replayed events held back for compaction. Rules only apply between events
+     * that are this close together in the replay. The default is 10000.
+     */
+    private int replayCompactionWindow = 10000;
+
+    /**
+     * Maximum number of events waiting to be dispatched to the plugins, held separately for events
+     * read from the event store and for events received from the M server. When either limit is
+     * reached the source of the events is made to wait. The default is 1000.
+     */
+    private int eventPipelineCapacity = 1000;
+
+    /**
+     * Number of lanes events are dispatched to each plugin on. Events for the same VM always use
+     * the same lane and are processed in order, while lanes run in parallel. The default is 1,
+     * which processes one event at a time. Overridden for a plugin by its bulkhead, if set.
+     */
+    private int dispatchLanes = 1;
+
+    /**
+     * The kind of threads the plugins are called on. The default is platform threads. Virtual
+     * threads suit plugins that spend most of their time waiting for remote calls, and allow much
+     * higher dispatch lanes; they are only used if the runtime supports them.
+     */
+    private DispatchMode dispatchMode = DispatchMode.PLATFORM_THREADS;
+
+    static final int DEFAULT_DISPATCH_IN_FLIGHT_LIMIT = 10000;
+
+    /**
+     * Maximum number of events being processed by the plugins at any time. When it is reached the
+     * connector is asked to stop reading messages until half of the events have completed, so the
+     * client lags behind the M server rather than running out of memory. The default is 10000, and
+     * it can't be more than the number of events the dispatcher's watermark can track.
+     */
+    private int dispatchInFlightLimit = DEFAULT_DISPATCH_IN_FLIGHT_LIMIT;
+
+    /**
+     * Priority of the types of event that don't have normal priority. A type without a priority of
+     * its own takes that of its closest superclass with one. By default backup and restore events
+     * have high priority.
+     */
+    private Map<Class< ? extends APIEvent>, EventPriority> eventPriorities =
+        defaultEventPriorities();
+
+    /**
+     * Share of each plugin's lanes given to each priority class when events are waiting. The
+     * defaults are 4 for high, 2 for normal and 1 for low priority.
+     */
+    private Map<EventPriority, Integer> priorityWeights = defaultPriorityWeights();
+
+    /**
+     * Maximum number of events queued for, or being processed by, each plugin. By default (0) it
+     * is the dispatch in-flight limit, so a plugin's queue never fills before the dispatcher stops
+     * accepting events and no event is rejected. Overridden for a plugin by its bulkhead, if set.
+     */
+    private int pluginQueueCapacity = 0;
+
+    /**
+     * What to do with an event for a plugin whose queue is full. The default is to reject it, so
+     * that a slow plugin never holds up the others; see {@link OverflowPolicy}. Only applies once
+     * the capacity is set below the in-flight limit. Overridden for a plugin by its bulkhead, if
+     * set.
+     */
+    private OverflowPolicy pluginOverflowPolicy = OverflowPolicy.REJECT;
+
+    /**
+     * Maximum number of events passed to a plugin's processEvents method at once. The default is
+     * 1, which passes events one at a time to processEvent.
+     */
+    private int pluginBatchSize = 1;
+
+    /**
+     * Longest time an event waits for a batch to fill before the batch is passed to the plugin
+     * anyway. The default is 10 milliseconds.
+     */
+    private long pluginBatchLinger = 10;
+
+    private TimeUnit pluginBatchLingerTimeUnit = TimeUnit.MILLISECONDS;
+
+    /**
+     * Limits for individual plugins, keyed by plugin name
+     */
+    private Map<String, PluginBulkhead> pluginBulkheads = new HashMap<>();
+
+    /**
+     * File in which the client saves the timestamp of the last event processed by all the plugins.
+     * If set, the client reads it on start up when no last processed event date has been provided,
+     * and updates it periodically and on close. If not set, no checkpoint is kept.
+     */
+    private File checkpointFile;
+
+    /**
+     * Time between saves of the checkpoint file. The default is 30 seconds.
+     */
+    private long checkpointInterval = 30;
+
+    private TimeUnit checkpointIntervalTimeUnit = TimeUnit.SECONDS;
+
+    /**
+     * Span of event time over which duplicate events are recognised and dropped before reaching the
+     * plugins. The default is 10 minutes. A value of zero disables duplicate suppression.
+     */
+    private long duplicateWindow = 10;
+
+    private TimeUnit duplicateWindowTimeUnit = TimeUnit.MINUTES;
+
+    /**
+     * Maximum number of events remembered for duplicate suppression. The default is 10000.
+     */
+    private int duplicateCapacity = 10000;
+
+    /**
+     * Directory in which the client journals every translated event before dispatching it. After a
+     * crash, the events that hadn't been processed are replayed from the journal and only later
+     * events are read from the event store. If not set, no journal is kept.
+     */
+    private File journalDirectory;
+
+    /**
+     * Size in bytes of each event journal segment file. The default is 16MB.
+     */
+    private int journalSegmentSize = 16 * 1024 * 1024;
+
+    /**
+     * Directory in which events that plugins fail to process are kept for retrying. If not set,
+     * failed events are only logged.
+     */
+    private File deadLetterDirectory;
+
+    /**
+     * Number of failures after which a dead letter is no longer retried automatically. The default
+     * is 10.
+     */
+    private int deadLetterMaxAttempts = 10;
+
+    /**
+     * Delay before the first retry of a dead letter, doubled after each failure up to the maximum
+     * delay. The defaults are 30 seconds and 1 hour.
+     */
+    private long deadLetterInitialDelay = 30;
+
+    private long deadLetterMaxDelay = 60 * 60;
+
+    private TimeUnit deadLetterDelayTimeUnit = TimeUnit.SECONDS;
+
     /**
      * Constructor that sets values for the server, user name and password and uses default values
      * for all other fields.
@@ -127,7 +325,40 @@ public class ConfigurationData
         this.transport = original.transport;
         this.messagelevel = original.messagelevel;
         this.connectorname = original.connectorname;
+        this.crawlstrategyname = original.crawlstrategyname;
         this.lastProcessedEvent = original.lastProcessedEvent;
+        this.vmCacheReconcilePeriod = original.vmCacheReconcilePeriod;
+        this.vmCacheReconcileTimeUnit = original.vmCacheReconcileTimeUnit;
+        this.vmCacheReconcilePacing = original.vmCacheReconcilePacing;
+        this.eventStorePageSize = original.eventStorePageSize;
+        this.eventStoreReplayWindows = original.eventStoreReplayWindows;
+        this.replayCompactionRules = EnumSet.copyOf(original.replayCompactionRules);
+        this.replayCompactionWindow = original.replayCompactionWindow;
+        this.eventPipelineCapacity = original.eventPipelineCapacity;
+        this.dispatchLanes = original.dispatchLanes;
+        this.dispatchMode = original.dispatchMode;
+        this.dispatchInFlightLimit = original.dispatchInFlightLimit;
+        this.eventPriorities = new HashMap<>(original.eventPriorities);
+        this.priorityWeights = new EnumMap<>(original.priorityWeights);
+        this.pluginQueueCapacity = original.pluginQueueCapacity;
+        this.pluginOverflowPolicy = original.pluginOverflowPolicy;
+        this.pluginBulkheads = new HashMap<>(original.pluginBulkheads);
+        this.pluginBatchSize = original.pluginBatchSize;
+        this.pluginBatchLinger = original.pluginBatchLinger;
+        this.pluginBatchLingerTimeUnit = original.pluginBatchLingerTimeUnit;
+        this.checkpointFile = original.checkpointFile;
+        this.checkpointInterval = original.checkpointInterval;
+        this.checkpointIntervalTimeUnit = original.checkpointIntervalTimeUnit;
+        this.duplicateWindow = original.duplicateWindow;
+        this.duplicateWindowTimeUnit = original.duplicateWindowTimeUnit;
+        this.duplicateCapacity = original.duplicateCapacity;
+        this.journalDirectory = original.journalDirectory;
+        this.journalSegmentSize = original.journalSegmentSize;
+        this.deadLetterDirectory = original.deadLetterDirectory;
+        this.deadLetterMaxAttempts = original.deadLetterMaxAttempts;
+        this.deadLetterInitialDelay = original.deadLetterInitialDelay;
+        this.deadLetterMaxDelay = original.deadLetterMaxDelay;
+        this.deadLetterDelayTimeUnit = original.deadLetterDelayTimeUnit;
 
         if (mserver == null || musername == null || muserpassword == null)
         {
@@ -159,6 +390,12 @@ public class ConfigurationData
         this.connectorname = c;
     }
 
+    public void setCrawlStrategy(final String c)
+    {
+        logger.debug("Setting crawl strategy name to {}", c);
+        this.crawlstrategyname = c;
+    }
+
     public String getMServer()
     {
         return mserver;
@@ -184,6 +421,11 @@ public class ConfigurationData
         return connectorname;
     }
 
+    public String getCrawlStrategy()
+    {
+        return crawlstrategyname;
+    }
+
     public LocalDateTime getLastProcessedEvent()
     {
         return lastProcessedEvent;
@@ -194,4 +436,377 @@ public class ConfigurationData
         logger.debug("Setting last processed event date to {}", date);
         lastProcessedEvent = date;
     }
+
+    public void setVMCacheReconcilePeriod(final long period, final TimeUnit unit)
+    {
+        logger.debug("Setting vm cache reconcile period to {} {}", period, unit);
+        this.vmCacheReconcilePeriod = period;
+        this.vmCacheReconcileTimeUnit = unit;
+    }
+
+    public long getVMCacheReconcilePeriod()
+    {
+        return vmCacheReconcilePeriod;
+    }
+
+    public TimeUnit getVMCacheReconcileTimeUnit()
+    {
+        return vmCacheReconcileTimeUnit;
+    }
+
+    public void setVMCacheReconcilePacing(final long millis)
+    {
+        logger.debug("Setting vm cache reconcile pacing to {}ms", millis);
+        this.vmCacheReconcilePacing = millis;
+    }
+
+    public long getVMCacheReconcilePacing()
+    {
+        return vmCacheReconcilePacing;
+    }
+
+    public void setEventStorePageSize(final int size)
+    {
+        logger.debug("Setting event store page size to {}", size);
+        this.eventStorePageSize = size;
+    }
+
+    public int getEventStorePageSize()
+    {
+        return eventStorePageSize;
+    }
+
+    public void setEventStoreReplayWindows(final int windows)
+    {
+        logger.debug("Setting event store replay windows to {}", windows);
+        this.eventStoreReplayWindows = windows;
+    }
+
+    public int getEventStoreReplayWindows()
+    {
+        return eventStoreReplayWindows;
+    }
+
+    public void setReplayCompaction(final EnumSet<CompactionRule> rules, final int window)
+    {
+        logger.debug("Setting replay compaction rules to {} over {} events", rules, window);
+        this.replayCompactionRules = EnumSet.copyOf(rules);
+        this.replayCompactionWindow = window;
+    }
+
+    public EnumSet<CompactionRule> getReplayCompactionRules()
+    {
+        return EnumSet.copyOf(replayCompactionRules);
+    }
+
+    public int getReplayCompactionWindow()
+    {
+        return replayCompactionWindow;
+    }
+
+    public void setEventPipelineCapacity(final int capacity)
+    {
+        logger.debug("Setting event pipeline capacity to {}", capacity);
+        this.eventPipelineCapacity = capacity;
+    }
+
+    public int getEventPipelineCapacity()
+    {
+        return eventPipelineCapacity;
+    }
+
+    public void setDispatchLanes(final int lanes)
+    {
+        logger.debug("Setting dispatch lanes to {}", lanes);
+        this.dispatchLanes = lanes;
+    }
+
+    public int getDispatchLanes()
+    {
+        return dispatchLanes;
+    }
+
+    public void setDispatchMode(final DispatchMode mode)
+    {
+        logger.debug("Setting dispatch mode to {}", mode);
+        this.dispatchMode = mode;
+    }
+
+    public DispatchMode getDispatchMode()
+    {
+        return dispatchMode;
+    }
+
+    /**
+     * @param limit maximum number of events being processed by the plugins at any time
+     * @throws IllegalArgumentException if the limit is less than 1 or more than the number of
+     *             events the dispatcher's watermark can track
+     */
+    public void setDispatchInFlightLimit(final int limit)
+    {
+        if (limit < 1 || limit > Watermark.DEFAULT_CAPACITY)
+        {
+            throw new IllegalArgumentException(String.format(
+                "Dispatch in flight limit must be between 1 and %d", Watermark.DEFAULT_CAPACITY));
+        }
+        logger.debug("Setting dispatch in flight limit to {}", limit);
+        this.dispatchInFlightLimit = limit;
+    }
+
+    public int getDispatchInFlightLimit()
+    {
+        return dispatchInFlightLimit;
+    }
+
+    public void setEventPriority(final Class< ? extends APIEvent> type,
+        final EventPriority priority)
+    {
+        logger.debug("Setting priority of {} to {}", type.getSimpleName(), priority);
+        eventPriorities.put(type, priority);
+    }
+
+    public Map<Class< ? extends APIEvent>, EventPriority> getEventPriorities()
+    {
+        return Collections.unmodifiableMap(eventPriorities);
+    }
+
+    public void setPriorityWeight(final EventPriority priority, final int weight)
+    {
+        logger.debug("Setting weight of {} priority to {}", priority, weight);
+        priorityWeights.put(priority, weight);
+    }
+
+    public Map<EventPriority, Integer> getPriorityWeights()
+    {
+        return Collections.unmodifiableMap(priorityWeights);
+    }
+
+    static Map<Class< ? extends APIEvent>, EventPriority> defaultEventPriorities()
+    {
+        Map<Class< ? extends APIEvent>, EventPriority> priorities = new HashMap<>();
+        priorities.put(BackupVMEvent.class, EventPriority.HIGH);
+        priorities.put(RestoreVMEvent.class, EventPriority.HIGH);
+        return priorities;
+    }
+
+    static Map<EventPriority, Integer> defaultPriorityWeights()
+    {
+        Map<EventPriority, Integer> weights = new EnumMap<>(EventPriority.class);
+        weights.put(EventPriority.HIGH, 4);
+        weights.put(EventPriority.NORMAL, 2);
+        weights.put(EventPriority.LOW, 1);
+        return weights;
+    }
+
+    public void setPluginQueueCapacity(final int capacity)
+    {
+        logger.debug("Setting plugin queue capacity to {}", capacity);
+        this.pluginQueueCapacity = capacity;
+    }
+
+    /**
+     * @return the capacity of each plugin's queue, which is the dispatch in-flight limit unless
+     *         set to something else
+     */
+    public int getPluginQueueCapacity()
+    {
+        return pluginQueueCapacity > 0 ? pluginQueueCapacity : dispatchInFlightLimit;
+    }
+
+    public void setPluginOverflowPolicy(final OverflowPolicy policy)
+    {
+        logger.debug("Setting plugin overflow policy to {}", policy);
+        this.pluginOverflowPolicy = policy;
+    }
+
+    public OverflowPolicy getPluginOverflowPolicy()
+    {
+        return pluginOverflowPolicy;
+    }
+
+    /**
+     * Enables the passing of events to the plugins in batches. Events for the same VM are never
+     * processed by a plugin out of order, whatever the batching.
+     * 
+     * @param size maximum number of events in a batch. 1 disables batching.
+     * @param linger longest time an event waits for a batch to fill
+     * @param unit the unit the linger time is specified in
+     */
+    public void setPluginBatching(final int size, final long linger, final TimeUnit unit)
+    {
+        logger.debug("Setting plugin batching to {} events or {} {}",
+            new Object[] {size, linger, unit});
+        this.pluginBatchSize = size;
+        this.pluginBatchLinger = linger;
+        this.pluginBatchLingerTimeUnit = unit;
+    }
+
+    public int getPluginBatchSize()
+    {
+        return pluginBatchSize;
+    }
+
+    public long getPluginBatchLinger()
+    {
+        return pluginBatchLinger;
+    }
+
+    public TimeUnit getPluginBatchLingerTimeUnit()
+    {
+        return pluginBatchLingerTimeUnit;
+    }
+
+    /**
+     * Sets the limits for a single plugin, replacing the dispatch lanes, plugin queue capacity and
+     * overflow policy that apply to the others.
+     * 
+     * @param pluginName the name returned by the plugin's getName method
+     * @param bulkhead the limits for the plugin
+     */
+    public void setPluginBulkhead(final String pluginName, final PluginBulkhead bulkhead)
+    {
+        logger.debug("Setting bulkhead of plugin {} to {}", pluginName, bulkhead);
+        pluginBulkheads.put(pluginName, bulkhead);
+    }
+
+    /**
+     * Returns the limits that apply to a plugin
+     * 
+     * @param pluginName the name returned by the plugin's getName method
+     * @return the limits set for the plugin, or the defaults if there are none
+     */
+    public PluginBulkhead getPluginBulkhead(final String pluginName)
+    {
+        PluginBulkhead bulkhead = pluginBulkheads.get(pluginName);
+        return bulkhead != null ? bulkhead : new PluginBulkhead(dispatchLanes,
+            getPluginQueueCapacity(), pluginOverflowPolicy);
+    }
+
+    public void setCheckpointFile(final File file)
+    {
+        logger.debug("Setting checkpoint file to {}", file);
+        this.checkpointFile = file;
+    }
+
+    public File getCheckpointFile()
+    {
+        return checkpointFile;
+    }
+
+    public void setCheckpointInterval(final long interval, final TimeUnit unit)
+    {
+        logger.debug("Setting checkpoint interval to {} {}", interval, unit);
+        this.checkpointInterval = interval;
+        this.checkpointIntervalTimeUnit = unit;
+    }
+
+    public long getCheckpointInterval()
+    {
+        return checkpointInterval;
+    }
+
+    public TimeUnit getCheckpointIntervalTimeUnit()
+    {
+        return checkpointIntervalTimeUnit;
+    }
+
+    public void setDuplicateWindow(final long window, final TimeUnit unit)
+    {
+        logger.debug("Setting duplicate window to {} {}", window, unit);
+        this.duplicateWindow = window;
+        this.duplicateWindowTimeUnit = unit;
+    }
+
+    public long getDuplicateWindow()
+    {
+        return duplicateWindow;
+    }
+
+    public TimeUnit getDuplicateWindowTimeUnit()
+    {
+        return duplicateWindowTimeUnit;
+    }
+
+    public void setDuplicateCapacity(final int capacity)
+    {
+        logger.debug("Setting duplicate capacity to {}", capacity);
+        this.duplicateCapacity = capacity;
+    }
+
+    public int getDuplicateCapacity()
+    {
+        return duplicateCapacity;
+    }
+
+    public void setJournalDirectory(final File directory)
+    {
+        logger.debug("Setting journal directory to {}", directory);
+        this.journalDirectory = directory;
+    }
+
+    public File getJournalDirectory()
+    {
+        return journalDirectory;
+    }
+
+    public void setJournalSegmentSize(final int size)
+    {
+        logger.debug("Setting journal segment size to {}", size);
+        this.journalSegmentSize = size;
+    }
+
+    public int getJournalSegmentSize()
+    {
+        return journalSegmentSize;
+    }
+
+    public void setDeadLetterDirectory(final File directory)
+    {
+        logger.debug("Setting dead letter directory to {}", directory);
+        this.deadLetterDirectory = directory;
+    }
+
+    public File getDeadLetterDirectory()
+    {
+        return deadLetterDirectory;
+    }
+
+    /**
+     * Sets how failed events are retried
+     * 
+     * @param maxAttempts number of failures after which an event is no longer retried
+     * @param initialDelay delay before the first retry, doubled after each failure
+     * @param maxDelay longest delay between retries
+     * @param unit the unit the delays are specified in
+     */
+    public void setDeadLetterRetry(final int maxAttempts, final long initialDelay,
+        final long maxDelay, final TimeUnit unit)
+    {
+        logger.debug("Setting dead letter retries to {} attempts, {} to {} {}", new Object[] {
+        maxAttempts, initialDelay, maxDelay, unit});
+        this.deadLetterMaxAttempts = maxAttempts;
+        this.deadLetterInitialDelay = initialDelay;
+        this.deadLetterMaxDelay = maxDelay;
+        this.deadLetterDelayTimeUnit = unit;
+    }
+
+    public int getDeadLetterMaxAttempts()
+    {
+        return deadLetterMaxAttempts;
+    }
+
+    public long getDeadLetterInitialDelay()
+    {
+        return deadLetterInitialDelay;
+    }
+
+    public long getDeadLetterMaxDelay()
+    {
+        return deadLetterMaxDelay;
+    }
+
+    public TimeUnit getDeadLetterDelayTimeUnit()
+    {
+        return deadLetterDelayTimeUnit;
+    }
 }
@@ -0,0 +1,132 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.time.LocalDateTime;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+
+/**
+ * An event that a plugin failed to process, kept so that it can be retried later. An instance is
+ * immutable; each failed retry replaces it with a new one.
+ * 
+ * @see OutboundAPIClient#getDeadLetters()
+ */
+public class DeadLetter
+{
+    private final long id;
+
+    private final String pluginName;
+
+    private final APIEvent event;
+
+    private final String cause;
+
+    private final int attempts;
+
+    private final LocalDateTime firstFailure;
+
+    private final Optional<LocalDateTime> nextRetry;
+
+    DeadLetter(final long id, final String pluginName, final APIEvent event, final String cause,
+        final int attempts, final LocalDateTime firstFailure,
+        final Optional<LocalDateTime> nextRetry)
+    {
+        this.id = id;
+        this.pluginName = pluginName;
+        this.event = event;
+        this.cause = cause;
+        this.attempts = attempts;
+        this.firstFailure = firstFailure;
+        this.nextRetry = nextRetry;
+    }
+
+    /**
+     * @return the identifier used to requeue or discard the dead letter
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return the name of the plugin that failed to process the event
+     */
+    public String getPluginName()
+    {
+        return pluginName;
+    }
+
+    public APIEvent getEvent()
+    {
+        return event;
+    }
+
+    /**
+     * @return a description of the last failure
+     */
+    public String getCause()
+    {
+        return cause;
+    }
+
+    /**
+     * @return the number of times the plugin has failed to process the event
+     */
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    public LocalDateTime getFirstFailure()
+    {
+        return firstFailure;
+    }
+
+    /**
+     * @return when the event will next be retried, or absent if the retries have run out and the
+     *         event will only be retried if requeued
+     */
+    public Optional<LocalDateTime> getNextRetry()
+    {
+        return nextRetry;
+    }
+
+    DeadLetter retryAt(final Optional<LocalDateTime> when)
+    {
+        return new DeadLetter(id, pluginName, event, cause, attempts, firstFailure, when);
+    }
+
+    DeadLetter failedAgain(final String newCause, final Optional<LocalDateTime> when)
+    {
+        return new DeadLetter(id, pluginName, event, newCause, attempts + 1, firstFailure, when);
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this).add("id", id).add("plugin", pluginName)
+            .add("event", event).add("attempts", attempts).add("cause", cause)
+            .add("nextRetry", nextRetry.orNull()).toString();
+    }
+}
@@ -0,0 +1,519 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.abiquo.bond.api.event.APIEventResult;
+import com.abiquo.bond.api.event.APIEventResultState;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the events that plugins failed to process in a local directory, one file per event, and
+ * retries them with exponential backoff. Events are only retried on the plugin that failed them.
+ * After a failed retry the plugin's other dead letters also wait for the backoff, and then for a
+ * single dead letter to be retried successfully, so a plugin whose third party app is down isn't
+ * flooded with retries. Once the retries run out a dead letter stays
+ * in the store until it is requeued or discarded.
+ * <p>
+ * Retried events are not ordered with respect to later events for the same VM, which will usually
+ * have been processed already. A plugin may therefore see a retried event after a newer one that
+ * supersedes it, for instance the DEPLOY of a VM after its UNDEPLOY, and should check the current
+ * state of the VM before acting on a retried event rather than assume it is the latest.
+ */
+class DeadLetterStore
+{
+    private final static Logger logger = LoggerFactory.getLogger(DeadLetterStore.class);
+
+    private static final byte VERSION = 1;
+
+    private static final String SUFFIX = ".dead";
+
+    private static final int MAX_CAUSE_LENGTH = 2000;
+
+    private final Path directory;
+
+    private final EventCodec codec = new EventCodec();
+
+    private final int maxAttempts;
+
+    private final long initialDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private final Map<Long, DeadLetter> letters = new TreeMap<>();
+
+    /**
+     * Dead letters being retried
+     */
+    private final Set<Long> inFlight = new HashSet<>();
+
+    /**
+     * Time before which no retries are made for a plugin, in epoch milliseconds
+     */
+    private final Map<String, Long> pausedUntil = new HashMap<>();
+
+    /**
+     * Dead letter being retried as a probe for each plugin whose last retry failed. The plugin's
+     * other dead letters wait until the probe succeeds.
+     */
+    private final Map<String, Long> probes = new HashMap<>();
+
+    private long nextId = 1;
+
+    private ScheduledExecutorService retrier;
+
+    private BiFunction<String, APIEvent, ListenableFuture<APIEventResult>> dispatcher;
+
+    /**
+     * @param directory directory the dead letters are kept in. It is created if it doesn't exist.
+     * @param maxAttempts number of failures after which an event is no longer retried
+     * @param initialDelay delay before the first retry, doubled after each failure
+     * @param maxDelay longest delay between retries
+     * @param unit unit of the delays
+     * @throws IOException if the directory can't be created or read
+     */
+    DeadLetterStore(final Path directory, final int maxAttempts, final long initialDelay,
+        final long maxDelay, final TimeUnit unit) throws IOException
+    {
+        this.directory = Files.createDirectories(directory.toAbsolutePath());
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = unit.toMillis(initialDelay);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+        load();
+    }
+
+    private void load() throws IOException
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX))
+        {
+            for (Path file : files)
+            {
+                try
+                {
+                    DeadLetter letter = decode(Files.readAllBytes(file));
+                    letters.put(letter.getId(), letter);
+                    nextId = Math.max(nextId, letter.getId() + 1);
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Ignoring unreadable dead letter " + file, e);
+                }
+            }
+        }
+        if (!letters.isEmpty())
+        {
+            logger.info("Loaded {} dead letters from {}", letters.size(), directory);
+        }
+    }
+
+    /**
+     * Records the failure of a plugin to process an event.
+     * 
+     * @param pluginName the plugin that failed
+     * @param event the event
+     * @param cause description of the failure
+     */
+    synchronized void add(final String pluginName, final APIEvent event, final String cause)
+    {
+        DeadLetter letter =
+            new DeadLetter(nextId++, pluginName, event, truncate(cause), 1, LocalDateTime.now(),
+                nextRetry(1));
+        letters.put(letter.getId(), letter);
+        logger.warn("Plugin {} failed to process {}, kept as dead letter {}: {}", new Object[] {
+        pluginName, event, letter.getId(), cause});
+        save(letter);
+    }
+
+    /**
+     * @return the dead letters in the order they were added
+     */
+    synchronized List<DeadLetter> list()
+    {
+        return new ArrayList<>(letters.values());
+    }
+
+    /**
+     * Schedules a dead letter to be retried straight away, even if its retries have run out.
+     * 
+     * @param id the dead letter
+     * @return false if there is no such dead letter
+     */
+    synchronized boolean requeue(final long id)
+    {
+        DeadLetter letter = letters.get(id);
+        if (letter == null)
+        {
+            return false;
+        }
+        letter = letter.retryAt(Optional.of(LocalDateTime.now()));
+        letters.put(id, letter);
+        pausedUntil.remove(letter.getPluginName());
+        save(letter);
+        return true;
+    }
+
+    /**
+     * Removes a dead letter without retrying it
+     * 
+     * @param id the dead letter
+     * @return false if there is no such dead letter
+     */
+    synchronized boolean discard(final long id)
+    {
+        DeadLetter letter = letters.remove(id);
+        if (letter == null)
+        {
+            return false;
+        }
+        delete(id);
+        return true;
+    }
+
+    /**
+     * Starts checking every second for dead letters due to be retried.
+     * 
+     * @param dispatcher passes an event to a single plugin, identified by name
+     */
+    synchronized void start(
+        final BiFunction<String, APIEvent, ListenableFuture<APIEventResult>> dispatcher)
+    {
+        if (retrier == null)
+        {
+            this.dispatcher = dispatcher;
+            retrier =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("ABQ_DEAD_LETTER").setDaemon(true).build());
+            retrier.scheduleWithFixedDelay(this::retryDue, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    void stop()
+    {
+        ScheduledExecutorService executor;
+        synchronized (this)
+        {
+            executor = retrier;
+            retrier = null;
+        }
+        if (executor != null)
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private void retryDue()
+    {
+        List<DeadLetter> due = new ArrayList<>();
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            for (DeadLetter letter : letters.values())
+            {
+                if (!letter.getNextRetry().isPresent()
+                    || toMillis(letter.getNextRetry().get()) > now
+                    || inFlight.contains(letter.getId()))
+                {
+                    continue;
+                }
+                String pluginName = letter.getPluginName();
+                Long paused = pausedUntil.get(pluginName);
+                if (paused != null)
+                {
+                    // The plugin failed its last retry: only probe it with one dead letter
+                    if (paused > now || probes.containsKey(pluginName))
+                    {
+                        continue;
+                    }
+                    probes.put(pluginName, letter.getId());
+                }
+                inFlight.add(letter.getId());
+                due.add(letter);
+            }
+        }
+
+        for (final DeadLetter letter : due)
+        {
+            if (!stillDue(letter))
+            {
+                continue;
+            }
+            logger.debug("Retrying dead letter {}", letter);
+            ListenableFuture<APIEventResult> result;
+            try
+            {
+                result = dispatcher.apply(letter.getPluginName(), letter.getEvent());
+            }
+            catch (RuntimeException e)
+            {
+                result = Futures.immediateFailedFuture(e);
+            }
+            Futures.addCallback(result, new FutureCallback<APIEventResult>()
+            {
+                @Override
+                public void onSuccess(final APIEventResult result)
+                {
+                    if (result != null && result.getState() == APIEventResultState.FAILED)
+                    {
+                        failed(letter, describe(result));
+                    }
+                    else
+                    {
+                        succeeded(letter);
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable t)
+                {
+                    failed(letter, t.toString());
+                }
+            });
+        }
+    }
+
+    /**
+     * Checks again that a dead letter's plugin isn't paused before retrying it, as a retry earlier
+     * in the same round may have failed and paused it. A letter that is no longer due is given
+     * back, to be picked up once the pause is over.
+     */
+    private synchronized boolean stillDue(final DeadLetter letter)
+    {
+        Long paused = pausedUntil.get(letter.getPluginName());
+        if (paused != null && paused > System.currentTimeMillis())
+        {
+            inFlight.remove(letter.getId());
+            probes.remove(letter.getPluginName(), letter.getId());
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void succeeded(final DeadLetter letter)
+    {
+        inFlight.remove(letter.getId());
+        probes.remove(letter.getPluginName(), letter.getId());
+        pausedUntil.remove(letter.getPluginName());
+        if (letters.remove(letter.getId()) != null)
+        {
+            logger.info("Dead letter {} processed by plugin {}", letter.getId(),
+                letter.getPluginName());
+            delete(letter.getId());
+        }
+    }
+
+    private synchronized void failed(final DeadLetter letter, final String cause)
+    {
+        inFlight.remove(letter.getId());
+        probes.remove(letter.getPluginName(), letter.getId());
+        DeadLetter current = letters.get(letter.getId());
+        if (current == null)
+        {
+            // Discarded while being retried
+            return;
+        }
+        Optional<LocalDateTime> next = nextRetry(current.getAttempts() + 1);
+        DeadLetter updated = current.failedAgain(truncate(cause), next);
+        letters.put(updated.getId(), updated);
+        if (next.isPresent())
+        {
+            pausedUntil.put(updated.getPluginName(), toMillis(next.get()));
+            logger.debug("Retry of dead letter {} failed, retrying at {}", updated.getId(),
+                next.get());
+        }
+        else
+        {
+            logger.warn("Retries of dead letter {} have run out: {}", updated.getId(), cause);
+        }
+        save(updated);
+    }
+
+    /**
+     * @param attempts number of failures so far
+     * @return when to retry after that many failures, or absent if there are to be no more retries
+     */
+    private Optional<LocalDateTime> nextRetry(final int attempts)
+    {
+        if (attempts >= maxAttempts)
+        {
+            return Optional.absent();
+        }
+        long delay = initialDelayMillis << Math.min(attempts - 1, 30);
+        if (delay > maxDelayMillis || delay < 0)
+        {
+            delay = maxDelayMillis;
+        }
+        return Optional.of(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(delay)));
+    }
+
+    static String describe(final APIEventResult result)
+    {
+        StringBuilder cause = new StringBuilder(String.valueOf(result.getMessage()));
+        if (result.getThrowable() != null)
+        {
+            cause.append(": ").append(result.getThrowable());
+        }
+        return cause.toString();
+    }
+
+    private static String truncate(final String cause)
+    {
+        String text = String.valueOf(cause);
+        return text.length() > MAX_CAUSE_LENGTH ? text.substring(0, MAX_CAUSE_LENGTH) : text;
+    }
+
+    private Path fileOf(final long id)
+    {
+        return directory.resolve(String.format("%020d%s", id, SUFFIX));
+    }
+
+    /**
+     * Writes a dead letter to a temporary file and renames it over the previous version, so a crash
+     * never leaves it half written. Failures are logged, leaving the dead letter in memory only.
+     */
+    private void save(final DeadLetter letter)
+    {
+        Path file = fileOf(letter.getId());
+        Path tmpfile = file.resolveSibling(file.getFileName() + ".tmp");
+        try
+        {
+            ByteBuffer content = ByteBuffer.wrap(encode(letter));
+            try (FileChannel channel =
+                FileChannel.open(tmpfile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                while (content.hasRemaining())
+                {
+                    channel.write(content);
+                }
+                channel.force(true);
+            }
+            try
+            {
+                Files.move(tmpfile, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(tmpfile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to save dead letter " + letter.getId() + " to " + file, e);
+        }
+    }
+
+    private void delete(final long id)
+    {
+        try
+        {
+            Files.deleteIfExists(fileOf(id));
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to delete dead letter " + id, e);
+        }
+    }
+
+    private byte[] encode(final DeadLetter letter) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeLong(letter.getId());
+        out.writeUTF(letter.getPluginName());
+        out.writeUTF(letter.getCause());
+        out.writeInt(letter.getAttempts());
+        out.writeLong(toMillis(letter.getFirstFailure()));
+        out.writeLong(letter.getNextRetry().isPresent() ? toMillis(letter.getNextRetry().get())
+            : -1);
+        byte[] event = codec.encode(letter.getEvent());
+        out.writeInt(event.length);
+        out.write(event);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private DeadLetter decode(final byte[] encoded) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        byte version = in.readByte();
+        if (version != VERSION)
+        {
+            throw new IOException("Unsupported dead letter version " + version);
+        }
+        long id = in.readLong();
+        String pluginName = in.readUTF();
+        String cause = in.readUTF();
+        int attempts = in.readInt();
+        LocalDateTime firstFailure = fromMillis(in.readLong());
+        long nextRetry = in.readLong();
+        byte[] event = new byte[in.readInt()];
+        in.readFully(event);
+        return new DeadLetter(id, pluginName, codec.decode(event), cause, attempts, firstFailure,
+            nextRetry < 0 ? Optional.<LocalDateTime> absent() : Optional.of(fromMillis(nextRetry)));
+    }
+
+    private static long toMillis(final LocalDateTime time)
+    {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(final long millis)
+    {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+/**
+ * The kind of threads the plugins are called on
+ */
+public enum DispatchMode
+{
+    /**
+     * Each plugin has a fixed pool of threads, one for each of its lanes
+     */
+    PLATFORM_THREADS,
+
+    /**
+     * Each plugin call runs on a new virtual thread, which is cheap enough for a plugin to have
+     * hundreds of lanes blocked on a remote API. The concurrency of the plugin's bulkhead still
+     * caps the number of calls in progress. Requires a runtime with virtual threads; on older
+     * runtimes platform threads are used instead.
+     */
+    VIRTUAL_THREADS;
+}
@@ -0,0 +1,254 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.Map;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.abiquo.bond.api.event.BackupVMEvent;
+import com.abiquo.bond.api.event.DeployVMEvent;
+import com.abiquo.bond.api.event.RestoreVMEvent;
+import com.abiquo.bond.api.event.UndeployVMEvent;
+import com.abiquo.bond.api.event.VirtualMachineEvent;
+import com.abiquo.event.model.Event;
+import com.abiquo.server.core.cloud.MetadataDto;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.abiquo.server.core.event.EventDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+
+/**
+ * Converts translated events to and from a compact binary form so that they can be stored locally
+ * and rebuilt later without any request to the Abiquo API.
+ * <p>
+ * An encoded event holds the type of APIEvent, its timestamp, the original event received from the
+ * M server or read from the event store, and for virtual machine events the VM name and metadata
+ * fetched when the event was translated:
+ * 
+ * <pre>
+ * byte   format version
+ * byte   event type
+ * byte   source: 0 = M server Event, 1 = event store EventDto
+ * long   timestamp in epoch milliseconds
+ * bytes  original event as JSON
+ * bytes  VM name, empty if none
+ * bytes  VM metadata as JSON, empty if none
+ * </pre>
+ * 
+ * Each bytes field is preceded by its length as an int.
+ */
+class EventCodec
+{
+    private static final byte VERSION = 1;
+
+    private static final byte SOURCE_EVENT = 0;
+
+    private static final byte SOURCE_EVENTDTO = 1;
+
+    private static final byte TYPE_API = 0;
+
+    private static final byte TYPE_VIRTUAL_MACHINE = 1;
+
+    private static final byte TYPE_BACKUP = 2;
+
+    private static final byte TYPE_DEPLOY = 3;
+
+    private static final byte TYPE_UNDEPLOY = 4;
+
+    private static final byte TYPE_RESTORE = 5;
+
+    private final ObjectMapper mapper = AbiquoObjectMapper.OBJECT_MAPPER.instance();
+
+    byte[] encode(final APIEvent event) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeByte(typeOf(event));
+        if (event.getOriginalEvent() != null)
+        {
+            out.writeByte(SOURCE_EVENT);
+            out.writeLong(timestampOf(event));
+            writeBytes(out, mapper.writeValueAsBytes(event.getOriginalEvent()));
+        }
+        else
+        {
+            out.writeByte(SOURCE_EVENTDTO);
+            out.writeLong(timestampOf(event));
+            writeBytes(out, mapper.writeValueAsBytes(event.getOriginalEventDto()));
+        }
+
+        String vmname = null;
+        Map<String, Object> metadata = null;
+        if (event instanceof VirtualMachineEvent)
+        {
+            vmname = ((VirtualMachineEvent) event).getVMName();
+            metadata = ((VirtualMachineEvent) event).getMetadata();
+        }
+        writeBytes(out, vmname != null ? vmname.getBytes("UTF-8") : new byte[0]);
+        writeBytes(out, metadata != null ? mapper.writeValueAsBytes(metadata) : new byte[0]);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads only the timestamp of an encoded event.
+     * 
+     * @return the timestamp in epoch milliseconds
+     */
+    long timestamp(final byte[] encoded) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        checkVersion(in.readByte());
+        in.readByte();
+        in.readByte();
+        return in.readLong();
+    }
+
+    @SuppressWarnings("unchecked")
+    APIEvent decode(final byte[] encoded) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        checkVersion(in.readByte());
+        byte type = in.readByte();
+        byte source = in.readByte();
+        in.readLong();
+        byte[] original = readBytes(in);
+        byte[] vmname = readBytes(in);
+        byte[] metadata = readBytes(in);
+
+        Map<String, Object> vmMetadata =
+            metadata.length > 0 ? mapper.readValue(metadata, Map.class) : null;
+        if (source == SOURCE_EVENT)
+        {
+            Event event = mapper.readValue(original, Event.class);
+            VirtualMachineDto vmdetails = new VirtualMachineDto();
+            vmdetails.setName(vmname.length > 0 ? new String(vmname, "UTF-8") : null);
+            vmdetails.setMetadata(vmMetadata);
+            switch (type)
+            {
+                case TYPE_API:
+                    return new APIEvent(event);
+                case TYPE_VIRTUAL_MACHINE:
+                    return new VirtualMachineEvent(event, vmdetails);
+                case TYPE_BACKUP:
+                    return new BackupVMEvent(event, vmdetails);
+                case TYPE_DEPLOY:
+                    return new DeployVMEvent(event, vmdetails);
+                case TYPE_UNDEPLOY:
+                    return new UndeployVMEvent(event);
+                case TYPE_RESTORE:
+                    return new RestoreVMEvent(event, vmdetails);
+            }
+        }
+        else if (source == SOURCE_EVENTDTO)
+        {
+            EventDto event = mapper.readValue(original, EventDto.class);
+            Optional<MetadataDto> optMetaData = Optional.absent();
+            if (vmMetadata != null)
+            {
+                MetadataDto metadataDto = new MetadataDto();
+                metadataDto.setMetadata(vmMetadata);
+                optMetaData = Optional.of(metadataDto);
+            }
+            switch (type)
+            {
+                case TYPE_API:
+                    return new APIEvent(event);
+                case TYPE_VIRTUAL_MACHINE:
+                    return new VirtualMachineEvent(event, optMetaData);
+                case TYPE_BACKUP:
+                    return new BackupVMEvent(event, optMetaData);
+                case TYPE_DEPLOY:
+                    return new DeployVMEvent(event, optMetaData);
+                case TYPE_UNDEPLOY:
+                    return new UndeployVMEvent(event);
+                case TYPE_RESTORE:
+                    return new RestoreVMEvent(event, optMetaData);
+            }
+        }
+        throw new IOException(String.format("Unknown event type %d from source %d", type, source));
+    }
+
+    private static byte typeOf(final APIEvent event) throws IOException
+    {
+        // Check subclasses before the classes they extend
+        if (event instanceof BackupVMEvent)
+        {
+            return TYPE_BACKUP;
+        }
+        if (event instanceof DeployVMEvent)
+        {
+            return TYPE_DEPLOY;
+        }
+        if (event instanceof UndeployVMEvent)
+        {
+            return TYPE_UNDEPLOY;
+        }
+        if (event instanceof RestoreVMEvent)
+        {
+            return TYPE_RESTORE;
+        }
+        if (event instanceof VirtualMachineEvent)
+        {
+            return TYPE_VIRTUAL_MACHINE;
+        }
+        if (event.getClass() == APIEvent.class)
+        {
+            return TYPE_API;
+        }
+        throw new IOException("Events of type " + event.getClass().getName()
+            + " can't be encoded");
+    }
+
+    private static long timestampOf(final APIEvent event)
+    {
+        return event.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static void checkVersion(final byte version) throws IOException
+    {
+        if (version != VERSION)
+        {
+            throw new IOException("Unsupported encoded event version " + version);
+        }
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes)
+        throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
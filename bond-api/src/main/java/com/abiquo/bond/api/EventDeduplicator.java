@@ -0,0 +1,179 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.time.ZoneId;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.google.common.base.Objects;
+
+/**
+ * Recognises events that have already been passed to the plugins. The same event can arrive twice
+ * when the replay of the event store overlaps with the live connection, or when the client
+ * reconnects, and plugins shouldn't repeat expensive work such as a backup because of it.
+ * <p>
+ * An event is identified by its entity, its normalised action and its timestamp to the second, as
+ * the event store doesn't keep finer precision. The entity of a virtual machine event is the id of
+ * the VM, so VMs with the same name in different enterprises are never taken for each other.
+ * Identities are remembered for a window of event time measured back from the latest event seen,
+ * up to a maximum number of entries.
+ */
+class EventDeduplicator
+{
+    private final static Logger logger = LoggerFactory.getLogger(EventDeduplicator.class);
+
+    private final long windowSeconds;
+
+    private final int maxEntries;
+
+    /**
+     * Identities seen, in arrival order, with the epoch second of the event
+     */
+    private final LinkedHashMap<EventIdentity, Long> seen;
+
+    private long latestSecond = Long.MIN_VALUE;
+
+    private long duplicates = 0;
+
+    /**
+     * @param window how far back in event time identities are remembered
+     * @param unit unit of the window
+     * @param maxEntries maximum number of identities remembered
+     */
+    EventDeduplicator(final long window, final TimeUnit unit, final int maxEntries)
+    {
+        this.windowSeconds = unit.toSeconds(window);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.seen = new LinkedHashMap<EventIdentity, Long>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<EventIdentity, Long> eldest)
+            {
+                return size() > EventDeduplicator.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Records the event and checks whether it has already been seen.
+     * 
+     * @param event event about to be dispatched
+     * @return true if the event should be dispatched, false if it is a duplicate. Events without an
+     *         entity or an action can't be identified and are always dispatched.
+     */
+    synchronized boolean firstSeen(final APIEvent event)
+    {
+        String entity = event.getEntity();
+        String action = event.getAction();
+        if (entity == null || action == null || event.getTimestamp() == null)
+        {
+            return true;
+        }
+
+        long second = event.getTimestamp().atZone(ZoneId.systemDefault()).toEpochSecond();
+        if (second > latestSecond)
+        {
+            latestSecond = second;
+            expire();
+        }
+        else if (second < latestSecond - windowSeconds)
+        {
+            // Too old to be in the window, so we can't tell. Let the plugins decide.
+            return true;
+        }
+
+        EventIdentity identity = new EventIdentity(entity, action, second);
+        if (seen.containsKey(identity))
+        {
+            duplicates++;
+            logger.debug("Duplicate event suppressed: {}", event);
+            return false;
+        }
+        seen.put(identity, second);
+        return true;
+    }
+
+    /**
+     * @return the number of duplicate events suppressed so far
+     */
+    synchronized long getDuplicateCount()
+    {
+        return duplicates;
+    }
+
+    private void expire()
+    {
+        long oldest = latestSecond - windowSeconds;
+        Iterator<Long> seconds = seen.values().iterator();
+        while (seconds.hasNext())
+        {
+            // Events arrive roughly in time order, so stop at the first one still in the window
+            if (seconds.next() >= oldest)
+            {
+                break;
+            }
+            seconds.remove();
+        }
+    }
+
+    private static final class EventIdentity
+    {
+        private final String entity;
+
+        private final String action;
+
+        private final long second;
+
+        EventIdentity(final String entity, final String action, final long second)
+        {
+            this.entity = entity;
+            this.action = action;
+            this.second = second;
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof EventIdentity))
+            {
+                return false;
+            }
+            EventIdentity other = (EventIdentity) obj;
+            return second == other.second && entity.equals(other.entity)
+                && action.equals(other.action);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(entity, action, second);
+        }
+    }
+}
@@ -23,127 +23,380 @@ package com.abiquo.bond.api;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.abiquo.bond.api.event.APIEvent;
 import com.abiquo.bond.api.event.APIEventResult;
+import com.abiquo.bond.api.event.APIEventResultState;
 import com.abiquo.bond.api.plugin.PluginEventException;
 import com.abiquo.bond.api.plugin.PluginInterface;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 
 /**
  * This class handles the dispatching of events to the registered plugins. It does this by adding a
- * call to the plugin.processEvent message for each event and for each plugin to an ExecutorService
+ * call to the plugin.processEvent message for each event and for each plugin to the
+ * {@link PluginChannel} of that plugin, keyed by the entity of the event. Each plugin has its own
+ * bounded queue and threads, so a slow plugin doesn't delay the others. Events for the same VM are
+ * processed by a plugin in the order they were dispatched, while events for different VMs can be
+ * processed in parallel.
  */
 public class EventDispatcher
 {
     private final static Logger logger = LoggerFactory.getLogger(EventDispatcher.class);
 
-    private final ListeningExecutorService eventDispatcher;
+    private final List<PluginChannel> channels = new ArrayList<>();
 
-    private final Set<PluginInterface> plugins;
+    private final Watermark watermark = new Watermark();
 
-    private LocalDateTime lastEventTimestamp;
+    private Optional<DeadLetterStore> deadLetters = Optional.absent();
 
+    private volatile EventRouter router;
+
+    private final Map<Class< ? extends APIEvent>, EventPriority> priorities;
+
+    /**
+     * One permit for each event that can be in flight, that is dispatched to at least one plugin
+     * and not yet completed by all of them
+     */
+    private final Semaphore inFlight;
+
+    private final int inFlightLimit;
+
+    /**
+     * Guards the saturation state and the notification of its changes, so that the listeners are
+     * always told of the changes in the order they happen and the last one they hear of is the
+     * current state
+     */
+    private final Object saturationLock = new Object();
+
+    private volatile boolean saturated = false;
+
+    private final List<SaturationListener> saturationListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Logs the failure of a plugin to process an event. Shared by all events to save allocating
+     * one for each.
+     */
+    private final FutureCallback<Object> failureLogger = new FutureCallback<Object>()
+    {
+        @Override
+        public void onSuccess(final Object result)
+        {
+        }
+
+        @Override
+        public void onFailure(final Throwable t)
+        {
+            if (t instanceof PluginEventException)
+            {
+                logger.warn("Processing of event failed: {}", t.getMessage());
+            }
+            else if (!(t instanceof CancellationException))
+            {
+                logger.error("Processing of event failed", t);
+            }
+        }
+    };
+
+    /**
+     * Creates a dispatcher whose only bound is its in-flight limit: each plugin's queue can hold
+     * as many events as the dispatcher lets through, so no event is ever rejected.
+     * 
+     * @param plugins the plugins events are dispatched to
+     * @param numThreads number of events, each for a different VM, that each plugin can process in
+     *            parallel
+     */
     public EventDispatcher(final Set<PluginInterface> plugins, final int numThreads)
     {
-        this.plugins = plugins;
-        eventDispatcher =
-            MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(numThreads));
+        this(plugins, plugin -> new PluginChannel(plugin, new PluginBulkhead(numThreads,
+            ConfigurationData.DEFAULT_DISPATCH_IN_FLIGHT_LIMIT, OverflowPolicy.REJECT),
+            DispatchMode.PLATFORM_THREADS, 1, 0, ConfigurationData.defaultPriorityWeights()),
+            ConfigurationData.DEFAULT_DISPATCH_IN_FLIGHT_LIMIT,
+            ConfigurationData.defaultEventPriorities());
+    }
+
+    /**
+     * @param plugins the plugins events are dispatched to
+     * @param config provides the bulkhead of each plugin, the dispatch mode, the batching and the
+     *            priorities
+     */
+    EventDispatcher(final Set<PluginInterface> plugins, final ConfigurationData config)
+    {
+        this(plugins, plugin -> {
+            PluginBulkhead bulkhead = config.getPluginBulkhead(plugin.getName());
+            logger.debug("Plugin {} dispatched to with {}", plugin.getName(), bulkhead);
+            return new PluginChannel(plugin, bulkhead, config.getDispatchMode(), config
+                .getPluginBatchSize(), config.getPluginBatchLingerTimeUnit().toMillis(
+                config.getPluginBatchLinger()), config.getPriorityWeights());
+        }, config.getDispatchInFlightLimit(), config.getEventPriorities());
+    }
+
+    private EventDispatcher(final Set<PluginInterface> plugins,
+        final Function<PluginInterface, PluginChannel> channelFactory, final int inFlightLimit,
+        final Map<Class< ? extends APIEvent>, EventPriority> priorities)
+    {
+        this.priorities = priorities;
+        // The watermark can't track more events than its ring holds
+        this.inFlightLimit = Math.max(1, Math.min(inFlightLimit, Watermark.DEFAULT_CAPACITY));
+        this.inFlight = new Semaphore(this.inFlightLimit);
+        for (PluginInterface plugin : plugins)
+        {
+            channels.add(channelFactory.apply(plugin));
+        }
+        buildRoutes();
     }
 
     /**
-     * Submits a Future to the ExecutorService that will execute the plugin's processEvent method
-     * for the event. Also creates a callback that will be executed when all the plugins have
-     * completed processing the event. The callback method updates the lastEventTimestamp variable.
+     * Submits the event to the channel of each plugin that handles its type, as found in the
+     * routing table. The event is marked as complete in the watermark once all those plugins have
+     * finished with it, whether or not they succeeded, and any failure is logged. An event rejected
+     * or cancelled by a channel only counts as finished once it has been dead-lettered, so the
+     * watermark stays before it and it is replayed after a restart. An event that no plugin handles
+     * is not tracked by the watermark, so it takes no room in it.
      * 
      * @param event the event to be processed by each plugin
      */
     void dispatchEvent(final APIEvent event)
     {
-        List<ListenableFuture<APIEventResult>> futures = new ArrayList<>();
-        for (final PluginInterface plugin : plugins)
+        EventRouter.Route route = router.route(event.getClass());
+        PluginChannel[] targets = route.channels;
+        if (targets.length == 0)
+        {
+            return;
+        }
+
+        if (!acquireInFlight())
+        {
+            // Shutting down. The event isn't registered, so the watermark never moves past it.
+            return;
+        }
+        final long seq = watermark.register(event.getTimestamp());
+
+        Runnable done;
+        if (targets.length == 1)
+        {
+            done = () -> completed(seq);
+        }
+        else
+        {
+            // Wait for every plugin, even if one of them fails early
+            final AtomicInteger remaining = new AtomicInteger(targets.length);
+            done = () -> {
+                if (remaining.decrementAndGet() == 0)
+                {
+                    completed(seq);
+                }
+            };
+        }
+        for (PluginChannel channel : targets)
+        {
+            ListenableFuture<APIEventResult> task = channel.submit(event, route.priority);
+            Futures.addCallback(task, failureLogger);
+            track(channel.getPlugin().getName(), event, task, done);
+        }
+    }
+
+    /**
+     * Waits for the number of events in flight to drop below the limit, telling the saturation
+     * listeners if it has been reached
+     * 
+     * @return false if interrupted while waiting
+     */
+    private boolean acquireInFlight()
+    {
+        if (inFlight.tryAcquire())
+        {
+            return true;
+        }
+        synchronized (saturationLock)
+        {
+            if (inFlight.tryAcquire())
+            {
+                return true;
+            }
+            if (!saturated)
+            {
+                saturated = true;
+                logger.warn("{} events in flight, waiting for the plugins to catch up",
+                    inFlightLimit);
+                for (SaturationListener listener : saturationListeners)
+                {
+                    listener.saturated();
+                }
+            }
+        }
+        try
+        {
+            inFlight.acquire();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Marks an event as complete once all its plugins have finished with it, telling the
+     * saturation listeners once half the limit of events in flight is free again
+     */
+    private void completed(final long seq)
+    {
+        watermark.complete(seq);
+        inFlight.release();
+        if (saturated && inFlight.availablePermits() >= inFlightLimit / 2)
         {
-            if (plugin.handlesEventType(event.getClass()))
+            synchronized (saturationLock)
             {
-                ListenableFuture<APIEventResult> task =
-                    eventDispatcher.submit(() -> plugin.processEvent(event));
-                futures.add(task);
+                if (saturated && inFlight.availablePermits() >= inFlightLimit / 2)
+                {
+                    saturated = false;
+                    logger.info("Plugins have caught up, dispatching events freely again");
+                    for (SaturationListener listener : saturationListeners)
+                    {
+                        listener.relieved();
+                    }
+                }
             }
         }
+    }
 
-        if (!futures.isEmpty())
+    /**
+     * Registers a listener told when the plugins fall behind and when they catch up
+     */
+    void addSaturationListener(final SaturationListener listener)
+    {
+        saturationListeners.add(listener);
+    }
+
+    /**
+     * Rebuilds the routing table. Called once the plugins have been started, as they may only
+     * know which events they handle once they have been configured.
+     */
+    void buildRoutes()
+    {
+        router = new EventRouter(channels, priorities);
+    }
+
+    /**
+     * Runs done once a plugin has finished with an event. If the plugin fails to process it, whether
+     * by returning a failed result or by throwing an exception, the event is first kept in the dead
+     * letter store, if there is one. An event that never reached the plugin, because its queue was
+     * full or the dispatcher is shutting down, only counts as finished once it has been kept as a
+     * dead letter: otherwise the watermark must stay before it so that it is replayed after a
+     * restart.
+     */
+    private void track(final String pluginName, final APIEvent event,
+        final ListenableFuture<APIEventResult> task, final Runnable done)
+    {
+        Futures.addCallback(task, new FutureCallback<APIEventResult>()
         {
-            Futures.addCallback(Futures.allAsList(futures),
-                new FutureCallback<List<APIEventResult>>()
+            @Override
+            public void onSuccess(final APIEventResult result)
+            {
+                if (deadLetters.isPresent() && result != null
+                    && result.getState() == APIEventResultState.FAILED)
                 {
+                    deadLetters.get().add(pluginName, event, DeadLetterStore.describe(result));
+                }
+                done.run();
+            }
 
-                    @Override
-                    public void onSuccess(final List<APIEventResult> results)
-                    {
-                        for (APIEventResult result : results)
-                        {
-                            LocalDateTime eventTs = result.getEvent().getTimestamp();
-                            if (lastEventTimestamp == null || lastEventTimestamp.isBefore(eventTs))
-                            {
-                                lastEventTimestamp = eventTs;
-                                logger.info("Last event timestamp updated to {}",
-                                    lastEventTimestamp);
-                            }
-                        }
+            @Override
+            public void onFailure(final Throwable t)
+            {
+                if (t instanceof CancellationException)
+                {
+                    logger.debug("Event {} cancelled for plugin {}", event, pluginName);
+                }
+                else if (deadLetters.isPresent())
+                {
+                    deadLetters.get().add(pluginName, event, t.toString());
+                    done.run();
+                }
+                else if (t instanceof RejectedExecutionException)
+                {
+                    logger.error("Event {} didn't reach plugin {} and there is no dead letter store "
+                        + "to keep it, it will be replayed after a restart", event, pluginName);
+                }
+                else
+                {
+                    done.run();
+                }
+            }
+        });
+    }
 
-                    }
+    /**
+     * Keeps the events that plugins fail to process in a dead letter store for retrying. Must be
+     * called before any events are dispatched.
+     */
+    void setDeadLetterStore(final DeadLetterStore store)
+    {
+        deadLetters = Optional.of(store);
+    }
 
-                    @Override
-                    public void onFailure(final Throwable t)
-                    {
-                        if (t instanceof PluginEventException)
-                        {
-                            PluginEventException pee = (PluginEventException) t;
-                            Optional<APIEvent> optEvent = pee.getAPIEvent();
-                            if (optEvent.isPresent())
-                            {
-                                LocalDateTime eventts = optEvent.get().getTimestamp();
-                                if (lastEventTimestamp == null
-                                    || lastEventTimestamp.isBefore(eventts))
-                                {
-                                    lastEventTimestamp = eventts;
-                                }
-                            }
-                        }
-                        else
-                        {
-                            // There's nothing we can do if any other exception type is thrown as we
-                            // won't know which event was being processed. Simply log a message.
-                            // Hopefully one of the other plugins will process the event
-                            // successfully and that will update the timestamp. If not then the
-                            // event will be resubmitted for processing by all plugins if no later
-                            // events are successfully processed.
-                            logger.error("Processing of event failed", t);
-                        }
-                    }
-                });
+    /**
+     * Passes an event to a single plugin again, outside the watermark, as when retrying a dead
+     * letter
+     * 
+     * @param pluginName the name of the plugin
+     * @param event the event
+     * @return a future holding the plugin's result
+     */
+    ListenableFuture<APIEventResult> retry(final String pluginName, final APIEvent event)
+    {
+        for (PluginChannel channel : channels)
+        {
+            if (channel.getPlugin().getName().equals(pluginName))
+            {
+                return channel.submit(event, router.route(event.getClass()).priority);
+            }
         }
+        return Futures.immediateFailedFuture(new IllegalStateException("Plugin " + pluginName
+            + " is not loaded"));
     }
 
     /**
-     * Get the timestamp of the last event to complete processing by all plugins.
+     * Get the timestamp up to which every dispatched event has completed processing by all
+     * plugins. Events still being processed, and any later events, are not covered even if they
+     * have completed.
      * 
-     * @return
+     * @return the watermark timestamp, or null if no event has completed yet
      */
     public LocalDateTime getLastEventTimestamp()
     {
-        return lastEventTimestamp;
+        return watermark.get();
+    }
+
+    /**
+     * Returns the state of the queue of each plugin
+     * 
+     * @return one entry for each plugin
+     */
+    public List<PluginQueueStats> getQueueStats()
+    {
+        List<PluginQueueStats> stats = new ArrayList<>(channels.size());
+        for (PluginChannel channel : channels)
+        {
+            stats.add(channel.getStats());
+        }
+        return stats;
     }
 
     /**
@@ -171,13 +424,16 @@ public class EventDispatcher
      */
     public void shutdown(final ShutdownLevel level, final int timeout, final TimeUnit unit)
     {
-        if (level == ShutdownLevel.AWAIT_ALL_TASKS)
+        for (PluginChannel channel : channels)
         {
-            eventDispatcher.shutdown();
-        }
-        else
-        {
-            eventDispatcher.shutdownNow();
+            if (level == ShutdownLevel.AWAIT_ALL_TASKS)
+            {
+                channel.shutdown();
+            }
+            else
+            {
+                channel.shutdownNow();
+            }
         }
         if (level != ShutdownLevel.IMMEDIATE)
         {
@@ -185,7 +441,13 @@ public class EventDispatcher
             {
                 int to = timeout == 0 || unit == null ? 5 : timeout;
                 TimeUnit tu = timeout == 0 || unit == null ? TimeUnit.MINUTES : unit;
-                eventDispatcher.awaitTermination(to, tu);
+                // The plugins shut down in parallel, so they share the timeout
+                long deadline = System.nanoTime() + tu.toNanos(to);
+                for (PluginChannel channel : channels)
+                {
+                    channel.awaitTermination(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                }
             }
             catch (InterruptedException e)
             {
@@ -0,0 +1,476 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.bond.api.event.APIEvent;
+
+/**
+ * Local append-only journal of translated events. Every event is written here before being
+ * dispatched so that, after a crash, the events that the plugins hadn't finished processing can be
+ * replayed from disk rather than read again from the event store and expanded again through the
+ * API.
+ * <p>
+ * The journal is a series of fixed size, memory-mapped segment files. Each record is written as its
+ * length, the CRC32 of its payload and the payload encoded by {@link EventCodec}. A zero length
+ * marks the end of the records in a segment. Writes to the mapping survive the client process
+ * crashing; they are forced to disk when a segment is filled and when the journal is closed. A
+ * segment is deleted once every event in it is older than the processing watermark.
+ * <p>
+ * If an event can't be journaled, its timestamp is saved in a marker file so that recovery doesn't
+ * skip past it: the replay then reads the event store again from that event. The marker is removed
+ * once an event from a later run at least as recent has been journaled.
+ */
+class EventJournal implements Closeable
+{
+    private final static Logger logger = LoggerFactory.getLogger(EventJournal.class);
+
+    private static final String SEGMENT_PREFIX = "events-";
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final int RECORD_HEADER = 8;
+
+    private static final String GAP_MARKER = "unjournaled";
+
+    /**
+     * No event has failed to be journaled
+     */
+    private static final long NO_GAP = Long.MAX_VALUE;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final Supplier<LocalDateTime> watermark;
+
+    private final EventCodec codec = new EventCodec();
+
+    /**
+     * Segments that have been closed, oldest first
+     */
+    private final Deque<Segment> closed = new ArrayDeque<>();
+
+    private Segment current;
+
+    private long nextSegmentNumber = 0;
+
+    private final Path gapMarker;
+
+    /**
+     * Timestamp of the earliest event that failed to be journaled and hasn't been journaled since
+     */
+    private long firstGap = NO_GAP;
+
+    /**
+     * Whether the gap was found when the journal was opened rather than made by this run, in which
+     * case journaling an event at least as recent fills it
+     */
+    private boolean gapFromEarlierRun = false;
+
+    /**
+     * @param directory directory holding the segment files. It is created if it doesn't exist.
+     * @param segmentSize size in bytes of each segment file
+     * @param watermark supplies the timestamp of the last event processed by all the plugins. May
+     *            supply null if no event has been processed yet.
+     * @throws IOException if the directory can't be created or the existing segments can't be read
+     */
+    EventJournal(final Path directory, final int segmentSize,
+        final Supplier<LocalDateTime> watermark) throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.watermark = watermark;
+        this.gapMarker = directory.resolve(GAP_MARKER);
+        if (Files.exists(gapMarker))
+        {
+            try
+            {
+                firstGap =
+                    Long.parseLong(new String(Files.readAllBytes(gapMarker), StandardCharsets.UTF_8)
+                        .trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // Can't tell where the gap is, so don't trust any of the journal
+                firstGap = Long.MIN_VALUE;
+            }
+            gapFromEarlierRun = true;
+            logger.warn("Event journal in {} is missing events, recovery will read them again "
+                + "from the event store", directory);
+        }
+
+        for (Path file : listSegments())
+        {
+            Segment segment = new Segment(file, segmentNumber(file));
+            segment.scan(null);
+            closed.add(segment);
+            nextSegmentNumber = segment.number + 1;
+        }
+        logger.debug("Opened event journal in {} with {} existing segments", directory,
+            closed.size());
+    }
+
+    /**
+     * Reads back the journaled events later than a given time, in the order they were written.
+     * Records damaged by a crash part way through a write are skipped along with the rest of their
+     * segment.
+     * 
+     * @param after only events with a later timestamp are returned. If null all events are
+     *            returned.
+     * @return the events found
+     */
+    synchronized List<APIEvent> recover(final LocalDateTime after)
+    {
+        List<APIEvent> events = new ArrayList<>();
+        long afterMillis = after != null ? toMillis(after) : Long.MIN_VALUE;
+        for (Segment segment : closed)
+        {
+            if (segment.lastTimestamp > afterMillis)
+            {
+                segment.scan(record -> {
+                    if (codec.timestamp(record) > afterMillis)
+                    {
+                        events.add(codec.decode(record));
+                    }
+                });
+            }
+        }
+        logger.info("Recovered {} events from the event journal", events.size());
+        return events;
+    }
+
+    /**
+     * @return the timestamp of the latest event in the journal, or null if the journal is empty
+     */
+    synchronized LocalDateTime getLastTimestamp()
+    {
+        long last = Long.MIN_VALUE;
+        for (Segment segment : closed)
+        {
+            last = Math.max(last, segment.lastTimestamp);
+        }
+        if (current != null)
+        {
+            last = Math.max(last, current.lastTimestamp);
+        }
+        return last == Long.MIN_VALUE ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(last),
+            ZoneId.systemDefault());
+    }
+
+    /**
+     * @return the latest time up to which every event is known to be in the journal: the timestamp
+     *         of the latest event, or that of the earliest event that couldn't be journaled if
+     *         there is one. Null if the journal is empty or can't be relied on at all.
+     */
+    synchronized LocalDateTime getRecoveredUpTo()
+    {
+        LocalDateTime last = getLastTimestamp();
+        if (last == null || firstGap == NO_GAP)
+        {
+            return last;
+        }
+        if (firstGap == Long.MIN_VALUE)
+        {
+            return null;
+        }
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(Math.min(toMillis(last), firstGap)),
+            ZoneId.systemDefault());
+    }
+
+    /**
+     * Appends an event to the journal. If this fails, the event is recorded as missing so that a
+     * later recovery doesn't skip it.
+     * 
+     * @param event the translated event
+     * @throws IOException if the event can't be encoded or written
+     */
+    synchronized void append(final APIEvent event) throws IOException
+    {
+        long timestamp = toMillis(event.getTimestamp());
+        try
+        {
+            write(event);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            recordGap(timestamp);
+            throw e;
+        }
+        if (gapFromEarlierRun && timestamp >= firstGap)
+        {
+            clearGap();
+        }
+    }
+
+    private void write(final APIEvent event) throws IOException
+    {
+        byte[] payload = codec.encode(event);
+        if (payload.length + RECORD_HEADER * 2 > segmentSize)
+        {
+            throw new IOException(String.format(
+                "Encoded event of %d bytes doesn't fit in a journal segment", payload.length));
+        }
+        if (current == null || current.buffer.remaining() < payload.length + RECORD_HEADER * 2)
+        {
+            roll();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        MappedByteBuffer buffer = current.buffer;
+        // Write the payload before the length so that a torn write is never taken for a record
+        int start = buffer.position();
+        buffer.position(start + RECORD_HEADER);
+        buffer.put(payload);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, payload.length);
+        current.lastTimestamp = Math.max(current.lastTimestamp, codec.timestamp(payload));
+    }
+
+    /**
+     * Forces the current segment to disk and releases it.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (current != null)
+        {
+            current.finish();
+            closed.add(current);
+            current = null;
+        }
+    }
+
+    private void roll() throws IOException
+    {
+        if (current != null)
+        {
+            current.finish();
+            closed.add(current);
+        }
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSegmentNumber,
+            SEGMENT_SUFFIX));
+        current = new Segment(file, nextSegmentNumber++);
+        try (FileChannel channel =
+            FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE))
+        {
+            current.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        logger.debug("Started event journal segment {}", file);
+        deleteProcessedSegments();
+    }
+
+    /**
+     * Saves the timestamp of an event that couldn't be journaled, unless an earlier one is already
+     * saved
+     */
+    private void recordGap(final long timestamp)
+    {
+        // A gap made by this run is only filled by reading the event store again after a restart
+        gapFromEarlierRun = false;
+        if (timestamp >= firstGap)
+        {
+            return;
+        }
+        firstGap = timestamp;
+        try
+        {
+            Files.write(gapMarker, String.valueOf(timestamp).getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to record missing event in event journal " + gapMarker, e);
+        }
+    }
+
+    private void clearGap()
+    {
+        try
+        {
+            Files.deleteIfExists(gapMarker);
+            firstGap = NO_GAP;
+            gapFromEarlierRun = false;
+            logger.info("Events missing from the event journal have been journaled again");
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to delete event journal marker " + gapMarker, e);
+        }
+    }
+
+    /**
+     * Deletes the closed segments whose events have all been processed by the plugins
+     */
+    private void deleteProcessedSegments()
+    {
+        LocalDateTime processed = watermark.get();
+        if (processed == null)
+        {
+            return;
+        }
+        long processedMillis = toMillis(processed);
+        while (!closed.isEmpty() && closed.peekFirst().lastTimestamp <= processedMillis)
+        {
+            Segment segment = closed.removeFirst();
+            try
+            {
+                Files.deleteIfExists(segment.file);
+                logger.debug("Deleted processed event journal segment {}", segment.file);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Unable to delete event journal segment " + segment.file, e);
+            }
+        }
+    }
+
+    private List<Path> listSegments() throws IOException
+    {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files =
+            Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+        {
+            for (Path file : files)
+            {
+                segments.add(file);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+
+    private static long segmentNumber(final Path file)
+    {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()
+            - SEGMENT_SUFFIX.length()));
+    }
+
+    private static long toMillis(final LocalDateTime time)
+    {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private interface RecordVisitor
+    {
+        void visit(byte[] record) throws IOException;
+    }
+
+    private class Segment
+    {
+        final Path file;
+
+        final long number;
+
+        MappedByteBuffer buffer;
+
+        long lastTimestamp = Long.MIN_VALUE;
+
+        Segment(final Path file, final long number)
+        {
+            this.file = file;
+            this.number = number;
+        }
+
+        /**
+         * Reads the valid records of a closed segment, updating its last timestamp
+         * 
+         * @param visitor receives each record, may be null
+         */
+        void scan(final RecordVisitor visitor)
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+                while (records.remaining() >= RECORD_HEADER)
+                {
+                    int length = records.getInt();
+                    if (length == 0)
+                    {
+                        break;
+                    }
+                    int checksum = records.getInt();
+                    if (length < 0 || length > records.remaining())
+                    {
+                        logger.warn("Damaged record found in event journal segment {}", file);
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    records.get(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record, 0, length);
+                    if ((int) crc.getValue() != checksum)
+                    {
+                        logger.warn("Checksum mismatch in event journal segment {}", file);
+                        break;
+                    }
+                    try
+                    {
+                        lastTimestamp = Math.max(lastTimestamp, codec.timestamp(record));
+                        if (visitor != null)
+                        {
+                            visitor.visit(record);
+                        }
+                    }
+                    catch (IOException | RuntimeException e)
+                    {
+                        logger.warn("Unable to read event from event journal segment " + file, e);
+                    }
+                }
+            }
+            catch (IOException | BufferUnderflowException e)
+            {
+                logger.warn("Unable to read event journal segment " + file, e);
+            }
+        }
+
+        void finish()
+        {
+            buffer.force();
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.google.common.base.Optional;
+
+/**
+ * Hands events over from the Event Store replay and from the live Outbound API connection to the
+ * event dispatcher. Each feed has its own bounded queue and a single consumer thread passes events
+ * on in order: first every replayed event, then, once the replay has been marked as finished, the
+ * live events. Live events received while the replay is running wait in their queue, and a producer
+ * that finds its queue full blocks until the consumer catches up, so memory use stays bounded
+ * however long the replay takes.
+ */
+class EventPipeline
+{
+    private final static Logger logger = LoggerFactory.getLogger(EventPipeline.class);
+
+    /**
+     * Marks the end of the replayed events
+     */
+    private static final Optional<APIEvent> END_OF_REPLAY = Optional.absent();
+
+    private final BlockingQueue<Optional<APIEvent>> replay;
+
+    private final BlockingQueue<APIEvent> live;
+
+    private final Consumer<APIEvent> sink;
+
+    private final Thread consumer;
+
+    private volatile boolean replaying = true;
+
+    private boolean replayEnded = false;
+
+    /**
+     * @param sink receives every event, on the pipeline's consumer thread
+     * @param capacity maximum number of events held in each of the replay and live queues
+     */
+    EventPipeline(final Consumer<APIEvent> sink, final int capacity)
+    {
+        this.sink = sink;
+        replay = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        live = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        consumer = new Thread(this::consume, "ABQ_EVENT_PIPELINE");
+        consumer.setDaemon(true);
+    }
+
+    void start()
+    {
+        consumer.start();
+    }
+
+    /**
+     * Queues an event read from the Event Store, waiting for space if the replay queue is full.
+     *
+     * @throws IllegalStateException if the end of the replay has already been marked, as nothing
+     *             would ever take the event from the queue
+     */
+    synchronized void addReplayed(final APIEvent event) throws InterruptedException
+    {
+        if (replayEnded)
+        {
+            throw new IllegalStateException("Event store replay has already ended");
+        }
+        replay.put(Optional.of(event));
+    }
+
+    /**
+     * Indicates that no more events will be read from the Event Store. From then on the live events
+     * are passed on. This must be called even if the replay fails or is not needed. Calling it
+     * again has no effect.
+     */
+    synchronized void endReplay() throws InterruptedException
+    {
+        if (!replayEnded)
+        {
+            replay.put(END_OF_REPLAY);
+            replayEnded = true;
+        }
+    }
+
+    /**
+     * @return true once the end of the replay has been marked and no more replayed events are
+     *         accepted
+     */
+    synchronized boolean isReplayEnded()
+    {
+        return replayEnded;
+    }
+
+    /**
+     * Queues an event received from the Outbound API, waiting for space if the live queue is full.
+     */
+    void addLive(final APIEvent event) throws InterruptedException
+    {
+        live.put(event);
+    }
+
+    /**
+     * @return true until the consumer has passed on the last replayed event
+     */
+    boolean isReplaying()
+    {
+        return replaying;
+    }
+
+    /**
+     * Stops the consumer thread. Events still queued are discarded.
+     */
+    void stop()
+    {
+        consumer.interrupt();
+    }
+
+    private void consume()
+    {
+        try
+        {
+            Optional<APIEvent> replayed;
+            while ((replayed = replay.take()).isPresent())
+            {
+                pass(replayed.get());
+            }
+            replaying = false;
+            logger.info("Event store replay complete, {} live events waiting", live.size());
+
+            while (true)
+            {
+                pass(live.take());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            logger.debug("Event pipeline stopped");
+        }
+    }
+
+    private void pass(final APIEvent event)
+    {
+        try
+        {
+            sink.accept(event);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Dispatch of event failed", e);
+        }
+    }
+}
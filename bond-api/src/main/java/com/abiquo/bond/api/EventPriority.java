@@ -0,0 +1,35 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+/**
+ * Priority classes for the scheduling of events to the plugins. When more events are waiting than
+ * a plugin can process at once, each class gets a share of the plugin's lanes in proportion to its
+ * weight, so events in a higher class see a bounded delay however many events of lower classes are
+ * waiting. Events for the same VM are always processed in order, whatever their class.
+ * 
+ * @see ConfigurationData#setEventPriority(Class, EventPriority)
+ * @see ConfigurationData#setPriorityWeight(EventPriority, int)
+ */
+public enum EventPriority
+{
+    HIGH, NORMAL, LOW;
+}
@@ -0,0 +1,162 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.abiquo.bond.api.event.BackupVMEvent;
+import com.abiquo.bond.api.event.DeployVMEvent;
+import com.abiquo.bond.api.event.RestoreVMEvent;
+import com.abiquo.bond.api.event.UndeployVMEvent;
+import com.abiquo.bond.api.event.VirtualMachineEvent;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable table of the plugins that handle each type of event, and of the priority of the type,
+ * so that the dispatcher doesn't have to ask every plugin about every event. The whole hierarchy of
+ * event classes is looked up when the table is built; each plugin's handlesEventType decides, as
+ * before, whether it handles subclasses of the types it is interested in. A class outside the
+ * hierarchy is looked up the first time an event of that class is dispatched and added to a new
+ * copy of the table.
+ * <p>
+ * A type without a priority of its own takes that of its closest superclass with one, or NORMAL.
+ */
+class EventRouter
+{
+    private final static Logger logger = LoggerFactory.getLogger(EventRouter.class);
+
+    private static final List<Class< ? extends APIEvent>> EVENT_TYPES = ImmutableList
+        .<Class< ? extends APIEvent>> of(APIEvent.class, VirtualMachineEvent.class,
+            DeployVMEvent.class, UndeployVMEvent.class, BackupVMEvent.class,
+            RestoreVMEvent.class);
+
+    private static final PluginChannel[] NONE = new PluginChannel[0];
+
+    private final List<PluginChannel> channels;
+
+    private final Map<Class< ? extends APIEvent>, EventPriority> priorities;
+
+    private volatile ImmutableMap<Class< ? >, Route> routes;
+
+    /**
+     * Builds the table. The plugins must have been started, as they may only know which events they
+     * handle once they have been configured.
+     * 
+     * @param channels the channel of each plugin
+     * @param priorities the priority of the types of event that have one
+     */
+    EventRouter(final List<PluginChannel> channels,
+        final Map<Class< ? extends APIEvent>, EventPriority> priorities)
+    {
+        this.channels = ImmutableList.copyOf(channels);
+        this.priorities = ImmutableMap.copyOf(priorities);
+        ImmutableMap.Builder<Class< ? >, Route> builder = ImmutableMap.builder();
+        for (Class< ? extends APIEvent> type : EVENT_TYPES)
+        {
+            builder.put(type, lookup(type));
+        }
+        routes = builder.build();
+    }
+
+    /**
+     * Returns the plugins that handle a type of event and the priority of the type
+     * 
+     * @param type the class of the event
+     * @return the route for the type
+     */
+    Route route(final Class< ? extends APIEvent> type)
+    {
+        Route route = routes.get(type);
+        return route != null ? route : addRoute(type);
+    }
+
+    private synchronized Route addRoute(final Class< ? extends APIEvent> type)
+    {
+        Route route = routes.get(type);
+        if (route == null)
+        {
+            route = lookup(type);
+            routes =
+                ImmutableMap.<Class< ? >, Route> builder().putAll(routes).put(type, route)
+                    .build();
+        }
+        return route;
+    }
+
+    private Route lookup(final Class< ? extends APIEvent> type)
+    {
+        return new Route(channelsFor(type), priorityOf(type));
+    }
+
+    private EventPriority priorityOf(final Class< ? > type)
+    {
+        for (Class< ? > c = type; c != null; c = c.getSuperclass())
+        {
+            EventPriority priority = priorities.get(c);
+            if (priority != null)
+            {
+                return priority;
+            }
+        }
+        return EventPriority.NORMAL;
+    }
+
+    private PluginChannel[] channelsFor(final Class< ? extends APIEvent> type)
+    {
+        List<PluginChannel> targets = new ArrayList<>();
+        for (PluginChannel channel : channels)
+        {
+            if (channel.getPlugin().handlesEventType(type))
+            {
+                targets.add(channel);
+            }
+        }
+        logger.debug("{} events are routed to {} plugins", type.getSimpleName(), targets.size());
+        return targets.isEmpty() ? NONE : targets.toArray(new PluginChannel[targets.size()]);
+    }
+
+    /**
+     * Where events of a type go
+     */
+    static class Route
+    {
+        /**
+         * The channels of the plugins that handle the type, empty if there are none. The array
+         * must not be modified.
+         */
+        final PluginChannel[] channels;
+
+        final EventPriority priority;
+
+        Route(final PluginChannel[] channels, final EventPriority priority)
+        {
+            this.channels = channels;
+            this.priority = priority;
+        }
+    }
+}
@@ -21,13 +21,22 @@
 package com.abiquo.bond.api;
 
 import static com.abiquo.bond.api.util.DateUtils.fromDate;
-import static com.abiquo.event.model.enumerations.EntityAction.VIRTUAL_MACHINE.UNDEPLOY;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
@@ -36,6 +45,7 @@ import javax.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.abiquo.bond.api.VMLifecycleTracker.Phase;
 import com.abiquo.bond.api.event.APIEvent;
 import com.abiquo.bond.api.event.BackupVMEvent;
 import com.abiquo.bond.api.event.DeployVMEvent;
@@ -46,6 +56,8 @@ import com.abiquo.server.core.cloud.MetadataDto;
 import com.abiquo.server.core.event.EventDto;
 import com.abiquo.server.core.event.EventsDto;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * An instance of this class handles the reading of events from the Abiquo Event Store when the
@@ -69,7 +81,27 @@ public class EventStore extends APIConnection
 
     private int currUserId;
 
-    private Map<String, String> startActions = new HashMap<>();
+    private VMLifecycleTracker lifecycle;
+
+    private List<ReplayMetricsListener> metricsListeners = new CopyOnWriteArrayList<>();
+
+    private WrapperNotification notificationHandler;
+
+    private volatile ReplayProgress lastProgress;
+
+    private int pageSize = 500;
+
+    private int replayWindows = 1;
+
+    /**
+     * Maximum number of pages each replay window reads ahead of the events being processed
+     */
+    private static final int WINDOW_BUFFER_PAGES = 4;
+
+    /**
+     * Maximum number of metadata requests made concurrently while replaying a page of events
+     */
+    private static final int METADATA_FETCH_THREADS = 8;
 
     /**
      * Sets up a connection to the Abiquo standard API and obtains the id and enterprise id of the
@@ -81,9 +113,12 @@ public class EventStore extends APIConnection
      * @param currUserEditLink URL of standard API request to obtain current user details.
      * @param mapNameToVMLinks mapping of virtual machine names to REST URLs which can be used to
      *            request associated data
+     * @param lifecycle tracker of the deploys and undeploys in progress, shared with the
+     *            {@link EventTranslator}
      */
     public EventStore(final String server, final String user, final String password,
-        final RESTLink currUserEditLink, final NameToVMLinks mapNameToVMLinks)
+        final RESTLink currUserEditLink, final NameToVMLinks mapNameToVMLinks,
+        final VMLifecycleTracker lifecycle)
     {
         super(server, user, password);
         targetEventBase = targetAPIBase.path("events");
@@ -104,6 +139,7 @@ public class EventStore extends APIConnection
             }
         }
         this.mapNameToVMLinks = mapNameToVMLinks;
+        this.lifecycle = lifecycle;
     }
 
     /**
@@ -117,8 +153,74 @@ public class EventStore extends APIConnection
     }
 
     /**
-     * Fetches events from the Event Store in batches of 1000 , processes them into APIEvents and
-     * passes them to the appropriate event handler.
+     * Sets the number of events requested per page from the Event Store.
+     * 
+     * @param pageSize number of events per page. Values below 1 are treated as 1.
+     */
+    public void setPageSize(final int pageSize)
+    {
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Passes the replay progress to the wrapper notification handler as well as any notification.
+     */
+    @Override
+    public void setNotificationHandler(final WrapperNotification handler)
+    {
+        super.setNotificationHandler(handler);
+        if (notificationHandler != null)
+        {
+            metricsListeners.remove(notificationHandler);
+        }
+        notificationHandler = handler;
+        if (handler != null)
+        {
+            metricsListeners.add(handler);
+        }
+    }
+
+    /**
+     * Registers a listener that receives the progress of each replay.
+     * 
+     * @param listener the listener to add
+     */
+    public void addReplayMetricsListener(final ReplayMetricsListener listener)
+    {
+        metricsListeners.add(listener);
+    }
+
+    public void removeReplayMetricsListener(final ReplayMetricsListener listener)
+    {
+        metricsListeners.remove(listener);
+    }
+
+    /**
+     * @return the latest progress published by the current or last replay, or absent if no replay
+     *         has been started
+     */
+    public Optional<ReplayProgress> getReplayProgress()
+    {
+        return Optional.fromNullable(lastProgress);
+    }
+
+    /**
+     * Sets the number of time windows the replay range is split into. Each window is read in
+     * parallel with the others.
+     * 
+     * @param replayWindows number of windows. Values below 1 are treated as 1.
+     */
+    public void setReplayWindows(final int replayWindows)
+    {
+        this.replayWindows = Math.max(1, replayWindows);
+    }
+
+    /**
+     * Fetches events from the Event Store page by page, processes them into APIEvents and passes
+     * them to the appropriate event handler. The next page is requested while the current one is
+     * being processed. The range between the start date and the time limit is split into time
+     * windows that are read in parallel and merged back into timestamp order. The replay rate is
+     * logged and passed to the wrapper once all the missed events have been handled.
      * 
      * @param startdate earliest date for which we need events
      * @param handler reference to APIEvent handler
@@ -129,23 +231,37 @@ public class EventStore extends APIConnection
     {
         logger.debug("Only processing messages after: {}", startdate);
 
-        String limitdate = Long.toString(startdate.toEpochSecond(ZonedDateTime.now().getOffset()));
-
-        WebTarget targetVMsOnly =
-            targetEventBase.queryParam("limit", "10").queryParam("asc", "true")
-                .queryParam("datefrom", limitdate);
+        ZoneOffset offset = ZonedDateTime.now().getOffset();
+        long from = startdate.toEpochSecond(offset);
+        long to = Math.max(from, msgTimeLimit.toEpochSecond(offset));
+        int windowcount = (int) Math.max(1, Math.min(replayWindows, to - from));
+        List<WindowedEventSource.Window> windows = new ArrayList<>(windowcount);
+        for (int i = 0; i < windowcount; i++)
+        {
+            long windowFrom = from + (to - from) * i / windowcount;
+            long windowTo = from + (to - from) * (i + 1) / windowcount;
+            windows.add(new WindowedEventSource.Window(window(windowFrom, windowTo), windowFrom,
+                windowTo));
+        }
+        WindowedEventSource source =
+            new WindowedEventSource(windows, WINDOW_BUFFER_PAGES, pageSize);
 
-        boolean moreevents = true;
-        while (moreevents)
+        ExecutorService metadataFetcher =
+            Executors.newFixedThreadPool(METADATA_FETCH_THREADS, new ThreadFactoryBuilder()
+                .setNameFormat("ABQ_METADATA_PREFETCH-%d").setDaemon(true).build());
+        ReplayCounters counters = new ReplayCounters(startdate);
+        publish(counters.snapshot(false));
+        try
         {
-            Invocation.Builder invocationBuilder = targetVMsOnly.request(EventsDto.MEDIA_TYPE);
-            Response response = invocationBuilder.get();
-            int status = response.getStatus();
-            if (status == 200)
+            Iterator<List<EventDto>> pages = source.batches();
+            pageloop: while (pages.hasNext())
             {
-                EventsDto resourceObject = response.readEntity(EventsDto.class);
-
-                List<EventDto> events = resourceObject.getCollection();
+                List<EventDto> events = pages.next();
+                counters.pages++;
+                logger.debug("Processing page {} of {} events from the event store",
+                    counters.pages, events.size());
+                VirtualMachineProcessor vmp =
+                    new VirtualMachineProcessor(prefetchMetaData(events, metadataFetcher));
                 for (EventDto event : events)
                 {
                     LocalDateTime eventDate = fromDate(event.getTimestamp());
@@ -155,72 +271,275 @@ public class EventStore extends APIConnection
                             "Processing event: ts:{} component:{} action:{}",
                             new Object[] {event.getTimestamp(), event.getComponent(),
                             event.getActionPerformed()});
+                        counters.read++;
+                        counters.current = eventDate;
                         String component = event.getComponent();
                         if (component != null)
                         {
                             if (component.equalsIgnoreCase("VIRTUAL_MACHINE"))
                             {
-                                VirtualMachineProcessor vmp = new VirtualMachineProcessor();
                                 Optional< ? extends VirtualMachineEvent> optvmevent =
                                     vmp.processEvent(event);
                                 if (optvmevent.isPresent())
                                 {
                                     handler.handleMessage(optvmevent.get());
+                                    counters.dispatched++;
+                                }
+                                else
+                                {
+                                    counters.skipped++;
                                 }
                             }
                             else
                             {
                                 handler.handleMessage(new APIEvent(event));
+                                counters.dispatched++;
                             }
                         }
+                        else
+                        {
+                            counters.skipped++;
+                        }
                     }
                     else
                     {
                         logger.debug("Event from after time limit received");
-                        return;
+                        break pageloop;
                     }
                 }
+                publish(counters.snapshot(false));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            Throwables.propagateIfInstanceOf(e.getCause(), OutboundAPIClientHTTPException.class);
+            throw e;
+        }
+        finally
+        {
+            source.close();
+            metadataFetcher.shutdownNow();
+        }
 
-                moreevents = false;
-                RESTLink nextlink = resourceObject.searchLink("next");
-                if (nextlink != null)
-                {
-                    targetVMsOnly =
-                        client.target(nextlink.getHref()).queryParam("asc", "true")
-                            .queryParam("datefrom", limitdate);
-                    moreevents = true;
-                }
+        ReplayProgress progress = counters.snapshot(true);
+        publish(progress);
+        String msg =
+            String.format("Replayed %d events from the event store in %d pages of up to %d "
+                + "in %dms (%.1f events/sec, %d dispatched, %d skipped)", progress.getEventsRead(),
+                progress.getPagesFetched(), pageSize, progress.getElapsed().toMillis(),
+                progress.getEventsPerSecond(), progress.getEventsDispatched(),
+                progress.getEventsSkipped());
+        logger.info(msg);
+        notifyWrapper(msg);
+    }
+
+    private void publish(final ReplayProgress progress)
+    {
+        lastProgress = progress;
+        logger.debug("Replay progress: {}", progress);
+        for (ReplayMetricsListener listener : metricsListeners)
+        {
+            try
+            {
+                listener.replayProgress(progress);
             }
-            else
+            catch (RuntimeException e)
             {
-                throw new OutboundAPIClientHTTPException("Failed to fetch messages",
-                    targetVMsOnly.getUri(),
-                    status);
+                logger.warn("Replay metrics listener failed", e);
             }
         }
     }
 
-    private Optional<MetadataDto> getMetaData(final EventDto event)
+    /**
+     * Counts of the replay in progress, only updated by the thread running the replay
+     */
+    private class ReplayCounters
+    {
+        final LocalDateTime startdate;
+
+        final long started = System.nanoTime();
+
+        LocalDateTime current;
+
+        long pages = 0;
+
+        long read = 0;
+
+        long dispatched = 0;
+
+        long skipped = 0;
+
+        ReplayCounters(final LocalDateTime startdate)
+        {
+            this.startdate = startdate;
+        }
+
+        ReplayProgress snapshot(final boolean complete)
+        {
+            return new ReplayProgress(startdate,
+                msgTimeLimit,
+                current,
+                pages,
+                read,
+                dispatched,
+                skipped,
+                Duration.ofNanos(System.nanoTime() - started),
+                complete,
+                LocalDateTime.now());
+        }
+    }
+
+    /**
+     * Creates a cursor over the events between two times, inclusive
+     * 
+     * @param from first second, in epoch seconds
+     * @param to last second, in epoch seconds
+     */
+    private PaginatedSource<EventDto> window(final long from, final long to)
     {
-        Optional<RESTLink> optMetadataLink =
-            mapNameToVMLinks.getLink(event.getVirtualMachine(), NameToVMLinks.VM_LINK_METADATA);
-        if (optMetadataLink.isPresent())
+        String datefrom = Long.toString(from);
+        String dateto = Long.toString(to);
+        WebTarget target =
+            targetEventBase.queryParam("asc", "true").queryParam("datefrom", datefrom)
+                .queryParam("dateto", dateto);
+        return new PaginatedSource<>(client, target, EventsDto.class, pageSize, href -> client
+            .target(href).queryParam("asc", "true").queryParam("datefrom", datefrom)
+            .queryParam("dateto", dateto));
+    }
+
+    /**
+     * Collects the distinct VMs on a page whose events will use their metadata and fetches that
+     * metadata concurrently, so that each VM's metadata is requested at most once per page.
+     * 
+     * @param events page of events from the Event Store
+     * @param executor executor used to run the metadata requests
+     * @return metadata indexed by the href of the metadata link it was fetched from. VMs whose
+     *         metadata could not be fetched are left out so that the request is retried when the
+     *         event is processed.
+     */
+    private Map<String, Optional<MetadataDto>> prefetchMetaData(final List<EventDto> events,
+        final ExecutorService executor)
+    {
+        // Follow the lifecycle transitions on this page without changing the shared tracker, so
+        // that deploys and undeploys that both finish with DEPLOY_FINISH are told apart in the same
+        // way as when the events are processed. An absent phase marks a finished transition.
+        Map<Integer, Optional<Phase>> pagePhases = new HashMap<>();
+        Map<String, RESTLink> links = new LinkedHashMap<>();
+        for (EventDto event : events)
         {
-            RESTLink metadataLink = optMetadataLink.get();
-            WebTarget targetMetaData = client.target(metadataLink.getHref());
-            Invocation.Builder invocationBuilderMeta =
-                targetMetaData.request(MetadataDto.MEDIA_TYPE);
-            Response responseMeta = invocationBuilderMeta.get();
-            int statusMeta = responseMeta.getStatus();
-            if (statusMeta == 200)
+            if (!fromDate(event.getTimestamp()).isBefore(msgTimeLimit))
             {
-                return Optional.of(responseMeta.readEntity(MetadataDto.class));
+                break;
             }
-            else
+            if (!"VIRTUAL_MACHINE".equalsIgnoreCase(event.getComponent()))
+            {
+                continue;
+            }
+            String action = event.getActionPerformed().toUpperCase();
+            Integer vmid = event.getIdVirtualMachine();
+            Optional<Phase> started =
+                pagePhases.containsKey(vmid) ? pagePhases.get(vmid) : lifecycle.current(vmid,
+                    fromDate(event.getTimestamp()));
+            Optional<Phase> phase = Phase.of(action);
+            if (phase.isPresent())
+            {
+                pagePhases.put(vmid, phase);
+            }
+            else if (action.equals("VIRTUAL_MACHINE_DEPLOY_FINISH")
+                || action.equals("VIRTUAL_MACHINE_UNDEPLOY_FINISH"))
+            {
+                pagePhases.put(vmid, Optional.<Phase> absent());
+            }
+
+            if (usesMetaData(event, action, started))
+            {
+                Optional<RESTLink> optMetadataLink = getMetaDataLink(event);
+                if (optMetadataLink.isPresent())
+                {
+                    links.put(optMetadataLink.get().getHref(), optMetadataLink.get());
+                }
+            }
+        }
+
+        Map<String, CompletableFuture<Optional<MetadataDto>>> requests = new LinkedHashMap<>();
+        for (Map.Entry<String, RESTLink> entry : links.entrySet())
+        {
+            RESTLink link = entry.getValue();
+            requests.put(entry.getKey(),
+                CompletableFuture.supplyAsync(() -> fetchMetaData(link), executor));
+        }
+
+        Map<String, Optional<MetadataDto>> metadata = new HashMap<>();
+        for (Map.Entry<String, CompletableFuture<Optional<MetadataDto>>> entry : requests
+            .entrySet())
+        {
+            try
             {
-                logger.error("HTTP error {} retrieving backup event metadata.", statusMeta);
+                metadata.put(entry.getKey(), entry.getValue().join());
+            }
+            catch (CompletionException e)
+            {
+                logger.warn("Prefetch of metadata from {} failed", entry.getKey(), e.getCause());
             }
         }
+        logger.debug("Prefetched metadata for {} virtual machines", metadata.size());
+        return metadata;
+    }
+
+    /**
+     * Checks whether the event built for a virtual machine action will carry the VM's metadata.
+     * 
+     * @param event the Event Store event
+     * @param action the upper case action performed
+     * @param started the action that started the VM's transition in progress, if known
+     */
+    private boolean usesMetaData(final EventDto event, final String action,
+        final Optional<Phase> started)
+    {
+        switch (action)
+        {
+            case "VIRTUAL_MACHINE_METADATA_MODIFIED":
+                return !isDedicatedUserEvent(event);
+            case "VIRTUAL_MACHINE_CREATE":
+            case "VIRTUAL_MACHINE_UNDEPLOY":
+            case "VIRTUAL_MACHINE_UNDEPLOY_FINISH":
+                return false;
+            case "VIRTUAL_MACHINE_DEPLOY_FINISH":
+                return started.orNull() != Phase.UNDEPLOY;
+            default:
+                return true;
+        }
+    }
+
+    private boolean isDedicatedUserEvent(final EventDto event)
+    {
+        Integer eventUserId = event.getIdUser();
+        Integer eventEnterpriseId = event.getIdEnterprise();
+        return !(eventUserId == null || eventEnterpriseId == null || currUserId != eventUserId
+            && currUserEnterpriseId != eventEnterpriseId);
+    }
+
+    private Optional<RESTLink> getMetaDataLink(final EventDto event)
+    {
+        Integer vmId = event.getIdVirtualMachine();
+        return vmId != null ? mapNameToVMLinks.getLink(vmId, NameToVMLinks.VM_LINK_METADATA)
+            : mapNameToVMLinks.getLink(event.getVirtualMachine(), NameToVMLinks.VM_LINK_METADATA);
+    }
+
+    private Optional<MetadataDto> fetchMetaData(final RESTLink metadataLink)
+    {
+        WebTarget targetMetaData = client.target(metadataLink.getHref());
+        Invocation.Builder invocationBuilderMeta = targetMetaData.request(MetadataDto.MEDIA_TYPE);
+        Response responseMeta = invocationBuilderMeta.get();
+        int statusMeta = responseMeta.getStatus();
+        if (statusMeta == 200)
+        {
+            return Optional.of(responseMeta.readEntity(MetadataDto.class));
+        }
+        else
+        {
+            logger.error("HTTP error {} retrieving backup event metadata.", statusMeta);
+        }
         return Optional.absent();
     }
 
@@ -230,20 +549,26 @@ public class EventStore extends APIConnection
      */
     class VirtualMachineProcessor
     {
+        private final Map<String, Optional<MetadataDto>> prefetchedMetaData;
+
+        /**
+         * @param prefetchedMetaData metadata already fetched for the current page, indexed by the
+         *            href of the metadata link
+         */
+        VirtualMachineProcessor(final Map<String, Optional<MetadataDto>> prefetchedMetaData)
+        {
+            this.prefetchedMetaData = prefetchedMetaData;
+        }
+
         Optional< ? extends VirtualMachineEvent> processEvent(final EventDto event)
         {
             String action = event.getActionPerformed().toUpperCase();
             Optional< ? extends VirtualMachineEvent> optvmevent = Optional.absent();
-            Optional<MetadataDto> optMetaData = getMetaData(event);
             if (action.equals("VIRTUAL_MACHINE_METADATA_MODIFIED"))
             {
-                Integer eventUserId = event.getIdUser();
-                Integer eventEnterpriseId = event.getIdEnterprise();
-
-                if (eventUserId == null || eventEnterpriseId == null || currUserId != eventUserId
-                    && currUserEnterpriseId != eventEnterpriseId)
+                if (!isDedicatedUserEvent(event))
                 {
-                    optvmevent = Optional.of(new BackupVMEvent(event, optMetaData));
+                    optvmevent = Optional.of(new BackupVMEvent(event, getMetaData(event)));
                 }
                 else
                 {
@@ -254,7 +579,8 @@ public class EventStore extends APIConnection
             else if (action.equals("VIRTUAL_MACHINE_CREATE")
                 || action.equals("VIRTUAL_MACHINE_UNDEPLOY"))
             {
-                startActions.put(event.getVirtualMachine(), action);
+                lifecycle.started(event.getIdVirtualMachine(), Phase.of(action).get(),
+                    fromDate(event.getTimestamp()));
             }
             else if (action.equals("VIRTUAL_MACHINE_DEPLOY_FINISH"))
             {
@@ -263,27 +589,44 @@ public class EventStore extends APIConnection
                 // until that bug (ABICLOUDPREMIUM-6135) is fixed we need to
                 // check what the original
                 // action was
-                String vmname = event.getVirtualMachine();
-                String originalaction = startActions.get(vmname);
-                if (action.equals("VIRTUAL_MACHINE_DEPLOY_FINISH")
-                    && UNDEPLOY.action().equalsIgnoreCase(originalaction))
+                Optional<Phase> started =
+                    lifecycle.finished(event.getIdVirtualMachine(), fromDate(event.getTimestamp()));
+                if (started.orNull() == Phase.UNDEPLOY)
                 {
                     optvmevent = Optional.of(new UndeployVMEvent(event));
                 }
                 else
                 {
-                    optvmevent = Optional.of(new DeployVMEvent(event, optMetaData));
+                    optvmevent = Optional.of(new DeployVMEvent(event, getMetaData(event)));
                 }
             }
             else if (action.equals("VIRTUAL_MACHINE_UNDEPLOY_FINISH"))
             {
+                lifecycle.finished(event.getIdVirtualMachine(), fromDate(event.getTimestamp()));
                 optvmevent = Optional.of(new UndeployVMEvent(event));
             }
             else
             {
-                optvmevent = Optional.of(new VirtualMachineEvent(event, optMetaData));
+                if (action.equals("VIRTUAL_MACHINE_DEPLOY"))
+                {
+                    lifecycle.started(event.getIdVirtualMachine(), Phase.DEPLOY,
+                        fromDate(event.getTimestamp()));
+                }
+                optvmevent = Optional.of(new VirtualMachineEvent(event, getMetaData(event)));
             }
             return optvmevent;
         }
+
+        private Optional<MetadataDto> getMetaData(final EventDto event)
+        {
+            Optional<RESTLink> optMetadataLink = getMetaDataLink(event);
+            if (optMetadataLink.isPresent())
+            {
+                Optional<MetadataDto> prefetched =
+                    prefetchedMetaData.get(optMetadataLink.get().getHref());
+                return prefetched != null ? prefetched : fetchMetaData(optMetadataLink.get());
+            }
+            return Optional.absent();
+        }
     }
 }
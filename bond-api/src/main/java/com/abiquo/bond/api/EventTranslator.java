@@ -20,6 +20,9 @@
  */
 package com.abiquo.bond.api;
 
+import static com.abiquo.bond.api.util.DateUtils.fromEpochMilliseconds;
+
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +30,7 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.abiquo.bond.api.VMLifecycleTracker.Phase;
 import com.abiquo.bond.api.event.APIEvent;
 import com.abiquo.bond.api.event.BackupVMEvent;
 import com.abiquo.bond.api.event.DeployVMEvent;
@@ -65,19 +69,25 @@ public class EventTranslator
 
     private NameToVMLinks mapNameToVMLinks;
 
+    private VMLifecycleTracker lifecycle;
+
     /**
      * Creates a connection to the REST API that is used to fetch any required extra data
      *
      * @param server Name or ip address of server on which the REST API is running
      * @param user User to authenticate to server as
      * @param password User's password
+     * @param lifecycle tracker of the deploys and undeploys in progress, shared with the
+     *            {@link EventStore}
      */
     public EventTranslator(final String server, final String user, final String password,
-        final RESTLink currUserEditLink, final NameToVMLinks mapNameToVMLinks)
+        final RESTLink currUserEditLink, final NameToVMLinks mapNameToVMLinks,
+        final VMLifecycleTracker lifecycle)
     {
         expander = new ResourceExpander(server, user, password);
         this.currUserEditLink = currUserEditLink;
         this.mapNameToVMLinks = mapNameToVMLinks;
+        this.lifecycle = lifecycle;
     }
 
     /**
@@ -89,7 +99,8 @@ public class EventTranslator
      * <ul>
      * <li>BackupVMEvent: Type is VIRTUAL_MACHINE, Action is METADATA_MODIFIED
      * <li>DeployVMEvent: Type is VIRTUAL_MACHINE, Action is DEPLOY_FINISH
-     * <li>UndeployVMEvent: Type is VIRTUAL_MACHINE, Action is UNDEPLOY_FINISH
+     * <li>UndeployVMEvent: Type is VIRTUAL_MACHINE, Action is UNDEPLOY_FINISH, or DEPLOY_FINISH
+     * when the transition was started by an UNDEPLOY
      * </ul>
      *
      * @param event received from the M server
@@ -103,6 +114,12 @@ public class EventTranslator
         {
             VirtualMachineDto vmdetails = getVM(event);
             String action = event.getAction();
+            LocalDateTime timestamp = fromEpochMilliseconds(event.getTimestamp());
+            Optional<Phase> phase = Phase.of(action);
+            if (phase.isPresent())
+            {
+                lifecycle.started(getVMId(vmdetails, event), phase.get(), timestamp);
+            }
 
             switch (action)
             {
@@ -129,16 +146,25 @@ public class EventTranslator
                     break;
 
                 case "DEPLOY_FINISH":
-                    mapNameToVMLinks.addVM(vmdetails);
-                    apievent = new DeployVMEvent(event, vmdetails);
+                    // Both deploys and undeploys currently finish with an DEPLOY_FINISH action
+                    // (ABICLOUDPREMIUM-6135), so check what the original action was
+                    Optional<Phase> started =
+                        lifecycle.finished(getVMId(vmdetails, event), timestamp);
+                    if (started.orNull() == Phase.UNDEPLOY)
+                    {
+                        removeFromCache(vmdetails, event);
+                        apievent = new UndeployVMEvent(event);
+                    }
+                    else
+                    {
+                        mapNameToVMLinks.addVM(vmdetails, getDetail(event, "MACHINE_NAME"));
+                        apievent = new DeployVMEvent(event, vmdetails);
+                    }
                     break;
 
                 case "UNDEPLOY_FINISH":
-                    String vmname = getVMName(vmdetails, event);
-                    if (vmname != null)
-                    {
-                        mapNameToVMLinks.removeVM(vmname);
-                    }
+                    lifecycle.finished(getVMId(vmdetails, event), timestamp);
+                    removeFromCache(vmdetails, event);
                     apievent = new UndeployVMEvent(event);
                     break;
 
@@ -159,6 +185,22 @@ public class EventTranslator
         return Optional.fromNullable(apievent);
     }
 
+    private void removeFromCache(final VirtualMachineDto vmdetails, final Event event)
+    {
+        if (vmdetails != null && vmdetails.getId() != null)
+        {
+            mapNameToVMLinks.removeVM(vmdetails.getId());
+        }
+        else
+        {
+            String vmname = getVMName(vmdetails, event);
+            if (vmname != null)
+            {
+                mapNameToVMLinks.removeVM(vmname);
+            }
+        }
+    }
+
     private VirtualMachineDto getVM(final Event event) throws OutboundAPIClientException
     {
         Optional<String> optVMId = event.getEntityIdentifier();
@@ -171,6 +213,15 @@ public class EventTranslator
         return vmdetails;
     }
 
+    private Integer getVMId(final VirtualMachineDto vmdto, final Event event)
+    {
+        if (vmdto != null && vmdto.getId() != null)
+        {
+            return vmdto.getId();
+        }
+        return VirtualMachineEvent.idFromEntity(event.getEntityIdentifier().orNull());
+    }
+
     private String getVMName(final VirtualMachineDto vmdto, final Event event)
     {
         String name = null;
@@ -180,14 +231,24 @@ public class EventTranslator
         }
         if (name == null)
         {
-            Optional< ? extends EventDetails> optVMDetails = event.getDetails();
-            if (optVMDetails.isPresent())
+            name = getDetail(event, "VIRTUAL_MACHINE_NAME");
+        }
+        return name;
+    }
+
+    private String getDetail(final Event event, final String key)
+    {
+        Optional< ? extends EventDetails> optVMDetails = event.getDetails();
+        if (optVMDetails.isPresent())
+        {
+            EventDetails details = optVMDetails.get();
+            Map<String, Object> values = details.getTransportMap();
+            Object value = values.get(key);
+            if (value != null)
             {
-                EventDetails details = optVMDetails.get();
-                Map<String, Object> values = details.getTransportMap();
-                name = values.get("VIRTUAL_MACHINE_NAME").toString();
+                return value.toString();
             }
         }
-        return name;
+        return null;
     }
 }
@@ -38,4 +38,24 @@ public interface MConnector
      * Closes the connection to the M server
      */
     public void disconnect();
+
+    /**
+     * Asks the connector to stop reading messages from the M server because the plugins are
+     * falling behind. Messages left unread are held by the server connection rather than the
+     * client's heap. The default implementation does nothing, in which case the connector is held
+     * up instead when it passes a message on and the client's queues are full.
+     * 
+     * @return true if the connector supports pausing
+     */
+    public default boolean pause()
+    {
+        return false;
+    }
+
+    /**
+     * Asks the connector to carry on reading messages after a {@link #pause}
+     */
+    public default void resume()
+    {
+    }
 }
@@ -20,97 +20,228 @@
  */
 package com.abiquo.bond.api;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-import static java.lang.String.format;
-
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-import javax.ws.rs.client.Client;
 import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.Response;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.abiquo.bond.api.plugin.PluginException;
+import com.abiquo.bond.api.crawl.HierarchyCrawlStrategy;
+import com.abiquo.bond.api.crawl.ResourceReader;
+import com.abiquo.bond.api.crawl.VMCrawlStrategy;
 import com.abiquo.model.rest.RESTLink;
 import com.abiquo.model.transport.SingleResourceTransportDto;
 import com.abiquo.model.transport.WrapperDto;
 import com.abiquo.server.core.cloud.VirtualMachineDto;
-import com.abiquo.server.core.cloud.VirtualMachinesDto;
-import com.abiquo.server.core.infrastructure.DatacenterDto;
-import com.abiquo.server.core.infrastructure.DatacentersDto;
-import com.abiquo.server.core.infrastructure.MachineDto;
-import com.abiquo.server.core.infrastructure.MachinesDto;
-import com.abiquo.server.core.infrastructure.RackDto;
-import com.abiquo.server.core.infrastructure.RacksDto;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * Class that maintains a mapping of the names of all the VMs deployed in Abiquo to their associated
- * REST API links. Currently, it only maintains the 'metadata' link to avoid wasting memory, but
- * other links can be added if they are required.
+ * Class that maintains a mapping of all the VMs deployed in Abiquo to their associated REST API
+ * links. Currently, it only maintains the 'metadata' link to avoid wasting memory, but other links
+ * can be added if they are required. VMs are indexed by id, and also by name, hypervisor and
+ * enterprise; see {@link VMCache}.
+ * <p>
+ * The cache is filled by a full crawl of the API at construction time, using a
+ * {@link VMCrawlStrategy}, and is then kept up to date by the events seen by the
+ * {@link EventTranslator}. As any missed event would leave it stale, a background reconciler can be
+ * started that periodically re-crawls the API at low priority and applies the differences it
+ * finds. Lookups never block: the map is concurrent and all updates are serialised on this
+ * instance. Every change is pushed to the subscribed {@link VMCacheListener}s.
  */
-public class NameToVMLinks extends APIConnection
+public class NameToVMLinks extends APIConnection implements VMCache
 {
     private final static Logger logger = LoggerFactory.getLogger(NameToVMLinks.class);
 
     public static final String VM_LINK_METADATA = "metadata";
 
+    /*
+     * Number of elements requested per page when crawling the API
+     */
+    private static final int CRAWL_PAGE_SIZE = 100;
+
     private List<String> supportedLinks = new ArrayList<>();
 
-    private Map<String, Map<String, RESTLink>> mapVMtoLinks = new HashMap<>();
+    /*
+     * Primary index. VM ids are unique across the platform, unlike names.
+     */
+    private Map<Integer, CachedVM> vmsById = new ConcurrentHashMap<>();
+
+    private Map<String, Set<Integer>> idsByName = new ConcurrentHashMap<>();
+
+    private Map<String, Set<Integer>> idsByHypervisor = new ConcurrentHashMap<>();
+
+    private Map<Integer, Set<Integer>> idsByEnterprise = new ConcurrentHashMap<>();
+
+    /*
+     * Ids of the VMs updated by events while a reconciliation crawl is running. The crawl result
+     * for these VMs may already be out of date, so the reconciler leaves them alone.
+     */
+    private Set<Integer> touchedDuringCrawl;
+
+    private final VMCrawlStrategy crawlStrategy;
+
+    private ScheduledExecutorService reconciler;
+
+    private List<VMCacheListener> listeners = new CopyOnWriteArrayList<>();
+
+    /*
+     * Delivers change notifications to the listeners in the order the changes were made
+     */
+    private ExecutorService notifier;
+
+    /**
+     * Set once the notifications have been stopped, after which changes are no longer published
+     */
+    private boolean notificationsStopped = false;
+
+    private volatile CacheReconciliationStats reconciliationStats;
 
     public NameToVMLinks(final String server, final String user, final String password)
+    {
+        this(server, user, password, new HierarchyCrawlStrategy());
+    }
+
+    /**
+     * @param crawlStrategy the way VMs are discovered by the initial crawl and by any
+     *            reconciliation
+     */
+    public NameToVMLinks(final String server, final String user, final String password,
+        final VMCrawlStrategy crawlStrategy)
     {
         super(server, user, password);
 
         supportedLinks.add(VM_LINK_METADATA);
+        this.crawlStrategy = crawlStrategy;
+        logger.debug("Discovering VMs using the {} crawl strategy", crawlStrategy.getName());
 
         fetchAllVMs();
     }
 
     /**
-     * Retrieve a link for a specific VM
+     * Retrieve a link for a specific VM. As VM names are only unique within an enterprise, this
+     * method can only return a link if a single VM with the name is cached. Use
+     * {@link #getLink(int, String)} whenever the VM id is known.
      * 
      * @param vmname name of VM for which link is required
      * @param linktype The value of the 'rel' attribute for the required link
      * @return A RESTLink representing the required link wrapped in an Optional. If the link
-     *         couldn't be found an absent Optional is returned.
+     *         couldn't be found, or the name is ambiguous, an absent Optional is returned.
      */
     public Optional<RESTLink> getLink(final String vmname, final String linktype)
     {
-        Map<String, RESTLink> links = mapVMtoLinks.get(vmname);
-        if (links != null)
+        Set<CachedVM> vms = getVMsByName(vmname);
+        if (vms.size() == 1)
+        {
+            return vms.iterator().next().getLink(linktype);
+        }
+        if (vms.size() > 1)
         {
-            RESTLink link = links.get(linktype);
-            return Optional.fromNullable(link);
+            logger.warn("{} vms are named {}. Unable to choose which one to use: {}",
+                new Object[] {vms.size(), vmname, vms});
         }
         return Optional.absent();
     }
 
+    @Override
+    public Optional<RESTLink> getLink(final int id, final String linktype)
+    {
+        CachedVM vm = vmsById.get(id);
+        return vm != null ? vm.getLink(linktype) : Optional.<RESTLink> absent();
+    }
+
+    @Override
+    public Optional<CachedVM> getVM(final int id)
+    {
+        return Optional.fromNullable(vmsById.get(id));
+    }
+
+    @Override
+    public Set<CachedVM> getVMsByName(final String name)
+    {
+        return name == null ? Collections.<CachedVM> emptySet() : resolve(idsByName.get(name));
+    }
+
+    @Override
+    public Set<CachedVM> getVMsByHypervisor(final String hypervisor)
+    {
+        return hypervisor == null ? Collections.<CachedVM> emptySet() : resolve(idsByHypervisor
+            .get(hypervisor));
+    }
+
+    @Override
+    public Set<CachedVM> getVMsByEnterprise(final int enterpriseId)
+    {
+        return resolve(idsByEnterprise.get(enterpriseId));
+    }
+
+    @Override
+    public Collection<CachedVM> getVMs()
+    {
+        return Collections.unmodifiableCollection(vmsById.values());
+    }
+
+    /*
+     * The secondary indexes are updated after the primary one, so a reader may briefly see an id
+     * that no longer has an entry. Such ids are simply skipped.
+     */
+    private Set<CachedVM> resolve(final Set<Integer> ids)
+    {
+        if (ids == null || ids.isEmpty())
+        {
+            return Collections.emptySet();
+        }
+        Set<CachedVM> vms = new HashSet<>();
+        for (Integer id : ids)
+        {
+            CachedVM vm = vmsById.get(id);
+            if (vm != null)
+            {
+                vms.add(vm);
+            }
+        }
+        return vms;
+    }
+
     public void addVM(final VirtualMachineDto vmdetails)
+    {
+        addVM(vmdetails, null);
+    }
+
+    /**
+     * Add a VM to the cache, replacing any previous entry with the same id
+     * 
+     * @param vmdetails details of the vm to be added
+     * @param hypervisor name of the physical machine the vm is deployed on, if known
+     */
+    public void addVM(final VirtualMachineDto vmdetails, final String hypervisor)
     {
         if (vmdetails != null)
         {
             logger.trace("Adding links for {}", vmdetails.getName());
-            Map<String, RESTLink> supported = new HashMap<>();
-            for (String supportedRel : supportedLinks)
+            Optional<CachedVM> optvm = toCachedVM(vmdetails, hypervisor, supportedLinks);
+            if (optvm.isPresent())
             {
-                RESTLink link = vmdetails.searchLink(supportedRel);
-                if (link != null)
-                {
-                    logger.trace("Added {} link: {}", supportedRel, link.getHref());
-                    supported.put(supportedRel, link);
-                }
+                putVM(optvm.get());
             }
-            mapVMtoLinks.put(vmdetails.getName(), supported);
         }
     }
 
@@ -125,179 +256,461 @@ public class NameToVMLinks extends APIConnection
     }
 
     /**
-     * Update the specified links for the specified vm
+     * Update the specified links for the specified vm. Any other cached links, and the hypervisor
+     * the vm is deployed on, are kept.
      * 
      * @param vmdetails details of the vm to be updated
      * @param links a list of the links that are to be uodated
      */
-    public void updateVM(final VirtualMachineDto vmdetails, final List<String> links)
+    public synchronized void updateVM(final VirtualMachineDto vmdetails, final List<String> links)
     {
         if (vmdetails != null)
         {
             logger.trace("Updating links for {}", vmdetails.getName());
-            Map<String, RESTLink> supported = new HashMap<>();
-            for (String supportedRel : links)
+            CachedVM current = vmdetails.getId() != null ? vmsById.get(vmdetails.getId()) : null;
+            String hypervisor = current != null ? current.getHypervisor().orNull() : null;
+            Optional<CachedVM> optvm = toCachedVM(vmdetails, hypervisor, links);
+            if (optvm.isPresent())
             {
-                RESTLink link = vmdetails.searchLink(supportedRel);
-                if (link != null)
+                CachedVM updated = optvm.get();
+                if (current != null)
                 {
-                    logger.trace("Added {} link: {}", supportedRel, link.getHref());
-                    supported.put(supportedRel, link);
+                    Map<String, RESTLink> merged = new HashMap<>(current.getLinks());
+                    merged.putAll(updated.getLinks());
+                    updated =
+                        new CachedVM(updated.getId(),
+                            updated.getName(),
+                            hypervisor,
+                            updated.getEnterpriseId().orNull(),
+                            merged);
                 }
+                putVM(updated);
             }
-            mapVMtoLinks.put(vmdetails.getName(), supported);
         }
     }
 
-    public void removeVM(final String name)
+    /**
+     * Remove every vm with the specified name. Use {@link #removeVM(int)} whenever the vm id is
+     * known as names are only unique within an enterprise.
+     * 
+     * @param name name of the vm(s) to be removed
+     */
+    public synchronized void removeVM(final String name)
+    {
+        Set<CachedVM> vms = getVMsByName(name);
+        if (vms.size() > 1)
+        {
+            logger.warn("Removing {} vms named {}", vms.size(), name);
+        }
+        for (CachedVM vm : vms)
+        {
+            removeVM(vm.getId());
+        }
+    }
+
+    public synchronized void removeVM(final int id)
     {
-        mapVMtoLinks.remove(name);
+        markTouched(id);
+        CachedVM removed = vmsById.remove(id);
+        if (removed != null)
+        {
+            unindex(removed);
+            publishToListeners(l -> l.vmRemoved(removed));
+        }
     }
 
     public Set<String> getVMNames()
     {
-        return mapVMtoLinks.keySet();
+        return idsByName.keySet();
     }
 
     /**
-     * Fetchs all vms to "cache"
+     * Subscribes a listener to the changes made to the cache. The listener is told about every VM
+     * currently cached as an addition before any subsequent change is delivered.
+     * 
+     * @param listener receiver of the cache changes
      */
-    private void fetchAllVMs()
+    public synchronized void subscribe(final VMCacheListener listener)
+    {
+        listeners.add(listener);
+        List<CachedVM> snapshot = new ArrayList<>(vmsById.values());
+        publish(() -> snapshot.forEach(listener::vmAdded));
+    }
+
+    public synchronized void unsubscribe(final VMCacheListener listener)
     {
-        WebTarget targetAllDCs = targetAPIBase.path("admin").path("datacenters");
-        AutoPagginatedList<DatacentersDto, DatacenterDto> dcs =
-            new AutoPagginatedList<>(client, targetAllDCs.getUri().toString(), DatacentersDto.class);
+        listeners.remove(listener);
+    }
 
-        List<VirtualMachineDto> retrievedVms = new ArrayList<>();
-        for (DatacenterDto dc : dcs)
+    private synchronized void putVM(final CachedVM vm)
+    {
+        markTouched(vm.getId());
+        CachedVM previous = vmsById.put(vm.getId(), vm);
+        if (previous != null)
         {
-            RESTLink racksLink =
-                checkNotNull(dc.searchLink("racks"),
-                    "Missing 'racks' link from datacenter %s. Should be here.", dc.getName());
-            AutoPagginatedList<RacksDto, RackDto> racks =
-                new AutoPagginatedList<>(client, racksLink.getHref(), RacksDto.class);
-            for (RackDto rack : racks)
-            {
-                RESTLink machinesLink =
-                    checkNotNull(rack.searchLink("machines"),
-                        "Missing 'machines' link from rack %s. Should be here.", rack.getName());
-                AutoPagginatedList<MachinesDto, MachineDto> machines =
-                    new AutoPagginatedList<>(client, machinesLink.getHref(), MachinesDto.class);
-                for (MachineDto machine : machines)
-                {
-                    RESTLink vmsLink =
-                        checkNotNull(machine.searchLink("virtualmachines"),
-                            "Missing 'virtualmachines' link from machine %s (%s). Should be here.",
-                            machine.getName(), machine.getIp());
-                    AutoPagginatedList<VirtualMachinesDto, VirtualMachineDto> vms =
-                        new AutoPagginatedList<>(client,
-                            vmsLink.getHref(),
-                            VirtualMachinesDto.class);
-                    vms.forEach(retrievedVms::add);
-                }
-            }
+            unindex(previous);
         }
-        logger.debug("{} vms found in abiquo api while caching them", retrievedVms.size());
-        retrievedVms.forEach(this::addVM);
+        index(vm);
+        if (previous == null)
+        {
+            publishToListeners(l -> l.vmAdded(vm));
+        }
+        else if (!previous.sameAs(vm))
+        {
+            publishToListeners(l -> l.vmUpdated(previous, vm));
+        }
+    }
 
+    /*
+     * Queues a change for the listeners subscribed when it was made, so that a listener that
+     * subscribes later only sees it through its snapshot. Must be called whilst holding the lock on
+     * this instance.
+     */
+    private void publishToListeners(final Consumer<VMCacheListener> change)
+    {
+        if (!listeners.isEmpty())
+        {
+            final List<VMCacheListener> targets = new ArrayList<>(listeners);
+            publish(() -> targets.forEach(change));
+        }
     }
 
-    /**
-     * Iterable class that allows to iterate all elements from an Abiquo API resource with auto
-     * management of pagination.
-     * 
-     * @author scastro
-     * @param <E> Wrapper dto class that contains the collection of T, p.e: {@link DatacentersDto}
-     * @param <T> Dto class of each element of the iterable, p.e: {@link DatacenterDto}
+    /*
+     * Must be called whilst holding the lock on this instance so that notifications are queued in
+     * the same order as the changes they describe. Notifications are dropped once they have been
+     * stopped.
      */
-    static private class AutoPagginatedList<E extends WrapperDto<T>, T extends SingleResourceTransportDto>
-        implements Iterable<T>
+    private void publish(final Runnable notification)
+    {
+        if (notificationsStopped)
+        {
+            logger.debug("VM cache notifications stopped, change not published");
+            return;
+        }
+        if (notifier == null)
+        {
+            notifier =
+                Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("ABQ_VM_CACHE_NOTIFIER").setDaemon(true).build());
+        }
+        notifier.execute(() -> {
+            try
+            {
+                notification.run();
+            }
+            catch (Throwable t)
+            {
+                logger.error("VM cache listener failed", t);
+            }
+        });
+    }
+
+    private void index(final CachedVM vm)
     {
+        addToIndex(idsByName, vm.getName(), vm.getId());
+        addToIndex(idsByHypervisor, vm.getHypervisor().orNull(), vm.getId());
+        addToIndex(idsByEnterprise, vm.getEnterpriseId().orNull(), vm.getId());
+    }
 
-        private AutoPagginatedIterator<T> iterator;
+    private void unindex(final CachedVM vm)
+    {
+        removeFromIndex(idsByName, vm.getName(), vm.getId());
+        removeFromIndex(idsByHypervisor, vm.getHypervisor().orNull(), vm.getId());
+        removeFromIndex(idsByEnterprise, vm.getEnterpriseId().orNull(), vm.getId());
+    }
 
-        public AutoPagginatedList(final Client client, final String uri,
-            final Class<E> wrapperDtoClass)
+    private static <K> void addToIndex(final Map<K, Set<Integer>> index, final K key,
+        final int id)
+    {
+        if (key != null)
         {
-            iterator = new AutoPagginatedIterator<>(client, uri, wrapperDtoClass);
+            index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(id);
         }
+    }
 
-        @Override
-        public Iterator<T> iterator()
+    private static <K> void removeFromIndex(final Map<K, Set<Integer>> index, final K key,
+        final int id)
+    {
+        if (key != null)
         {
-            return iterator;
+            Set<Integer> ids = index.get(key);
+            if (ids != null)
+            {
+                ids.remove(id);
+                if (ids.isEmpty())
+                {
+                    index.remove(key);
+                }
+            }
         }
+    }
 
-        static private class AutoPagginatedIterator<A extends SingleResourceTransportDto>
-            implements Iterator<A>
+    private void markTouched(final int id)
+    {
+        if (touchedDuringCrawl != null)
         {
-            private List<A> collection = null;
-
-            private int actualElement = 0;
+            touchedDuringCrawl.add(id);
+        }
+    }
 
-            private RESTLink nextLink = null;
+    private static Optional<CachedVM> toCachedVM(final VirtualMachineDto vmdetails,
+        final String hypervisor, final List<String> links)
+    {
+        if (vmdetails.getId() == null)
+        {
+            logger.warn("Unable to cache vm {} as it has no id", vmdetails.getName());
+            return Optional.absent();
+        }
+        Map<String, RESTLink> supported = new HashMap<>();
+        for (String supportedRel : links)
+        {
+            RESTLink link = vmdetails.searchLink(supportedRel);
+            if (link != null)
+            {
+                logger.trace("Added {} link: {}", supportedRel, link.getHref());
+                supported.put(supportedRel, link);
+            }
+        }
+        RESTLink enterpriseLink = vmdetails.searchLink("enterprise");
+        Integer enterpriseId = enterpriseLink != null ? enterpriseLink.getId() : null;
+        return Optional.of(new CachedVM(vmdetails.getId(),
+            vmdetails.getName(),
+            hypervisor,
+            enterpriseId,
+            supported));
+    }
 
-            private final String mediatype;
+    /**
+     * Starts a background thread that periodically re-crawls the Abiquo API and corrects any
+     * differences between the cache and the API. The thread runs at minimum priority and waits
+     * between requests so that it doesn't compete with event processing.
+     * 
+     * @param period time between the end of one crawl and the start of the next
+     * @param unit unit of the period
+     * @param pacingMillis pause between consecutive API requests made by the crawl
+     */
+    public synchronized void startReconciler(final long period, final TimeUnit unit,
+        final long pacingMillis)
+    {
+        if (reconciler == null)
+        {
+            reconciler =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("ABQ_VM_CACHE_RECONCILER").setDaemon(true)
+                    .setPriority(Thread.MIN_PRIORITY).build());
+            reconciler.scheduleWithFixedDelay(() -> reconcile(pacingMillis), period, period,
+                unit);
+            logger.debug("VM cache reconciler running at {} {} intervals", period, unit
+                .toString().toLowerCase());
+        }
+    }
 
-            private final Client client;
+    /**
+     * Stops the background reconciler, interrupting any crawl in progress, and the delivery of
+     * change notifications once those already queued have been delivered. Later changes are not
+     * notified.
+     */
+    public synchronized void stopReconciler()
+    {
+        notificationsStopped = true;
+        if (reconciler != null)
+        {
+            reconciler.shutdownNow();
+            reconciler = null;
+        }
+        if (notifier != null)
+        {
+            notifier.shutdown();
+            notifier = null;
+        }
+    }
 
-            private final Class< ? extends WrapperDto<A>> wrapperDtoClass;
+    /**
+     * @return statistics about the last reconciliation, or about the initial crawl if no
+     *         reconciliation has run yet
+     */
+    public CacheReconciliationStats getReconciliationStats()
+    {
+        return reconciliationStats;
+    }
 
-            public AutoPagginatedIterator(final Client client, final String uri,
-                final Class< ? extends WrapperDto<A>> wrapperDtoClass)
-            {
-                this.client = client;
-                this.wrapperDtoClass = wrapperDtoClass;
-                try
-                {
-                    mediatype =
-                        (String) wrapperDtoClass.getField("MEDIA_TYPE").get(wrapperDtoClass);
-                    doGet(uri);
-                }
-                catch (IllegalArgumentException | IllegalAccessException | NoSuchFieldException
-                    | SecurityException e)
+    /**
+     * Crawls the Abiquo API and applies the differences between the result and the cache. The crawl
+     * itself runs without holding any lock; the diff is computed and applied in a single step so
+     * that updates made by events in the meantime are neither lost nor interleaved. VMs changed by
+     * an event during the crawl are skipped as the event is more recent than the crawl.
+     * 
+     * @param pacingMillis pause between consecutive API requests
+     */
+    void reconcile(final long pacingMillis)
+    {
+        long start = System.currentTimeMillis();
+        Set<Integer> touched = ConcurrentHashMap.newKeySet();
+        synchronized (this)
+        {
+            touchedDuringCrawl = touched;
+        }
+        try
+        {
+            Map<Integer, CachedVM> crawled = new HashMap<>();
+            crawlVMs((vm, hypervisor) -> {
+                Optional<CachedVM> optvm = toCachedVM(vm, hypervisor, supportedLinks);
+                if (optvm.isPresent())
                 {
-                    throw Throwables.propagate(e);
+                    crawled.put(optvm.get().getId(), optvm.get());
                 }
-            }
+            }, pacingMillis);
 
-            private void doGet(final String uri)
+            int added = 0, removed = 0, updated = 0;
+            synchronized (this)
             {
-                Response response = client.target(uri).request(mediatype).get();
-                if (response.getStatus() == 200)
+                touchedDuringCrawl = null;
+                for (CachedVM crawledvm : crawled.values())
                 {
-                    WrapperDto<A> wrapperDto = response.readEntity(wrapperDtoClass);
-                    collection = wrapperDto.getCollection();
-                    nextLink = wrapperDto.searchLink("next");
+                    if (!touched.contains(crawledvm.getId()))
+                    {
+                        CachedVM current = vmsById.get(crawledvm.getId());
+                        CachedVM vm = crawledvm;
+                        if (current != null && !vm.getHypervisor().isPresent())
+                        {
+                            // The crawl strategy doesn't know the hypervisor, so keep the one we
+                            // already know
+                            vm =
+                                new CachedVM(vm.getId(),
+                                    vm.getName(),
+                                    current.getHypervisor().orNull(),
+                                    vm.getEnterpriseId().orNull(),
+                                    vm.getLinks());
+                        }
+                        if (current == null)
+                        {
+                            putVM(vm);
+                            added++;
+                        }
+                        else if (!current.sameAs(vm))
+                        {
+                            putVM(vm);
+                            updated++;
+                        }
+                    }
                 }
-                else
+                for (Integer id : new ArrayList<>(vmsById.keySet()))
                 {
-                    Throwables.propagate(new PluginException(format("Unable to retrieve %s: %s",
-                        uri, response.getStatusInfo().getReasonPhrase())));
+                    if (!crawled.containsKey(id) && !touched.contains(id))
+                    {
+                        removeVM(id);
+                        removed++;
+                    }
                 }
             }
 
-            @Override
-            public boolean hasNext()
+            reconciliationStats =
+                new CacheReconciliationStats(LocalDateTime.now(),
+                    System.currentTimeMillis() - start,
+                    added,
+                    removed,
+                    updated,
+                    touched.size(),
+                    0);
+            logger.info("VM cache reconciled: {}", reconciliationStats);
+        }
+        catch (Throwable t)
+        {
+            synchronized (this)
             {
-                return actualElement < collection.size() || nextLink != null;
+                touchedDuringCrawl = null;
             }
-
-            @Override
-            public A next()
+            reconciliationStats = reconciliationStats.failed();
+            if (Thread.currentThread().isInterrupted())
             {
-                if (actualElement < collection.size())
-                {
-                    return collection.get(actualElement++);
-                }
-                else
-                {
-                    doGet(nextLink.getHref());
-                    actualElement = 0;
-                    return collection.get(actualElement++);
-                }
+                logger.debug("VM cache reconciliation interrupted");
             }
+            else
+            {
+                logger.error("VM cache reconciliation failed", t);
+                notifyWrapper("VM cache reconciliation failed", t);
+            }
+        }
+    }
+
+    /**
+     * Fetchs all vms to "cache"
+     */
+    private void fetchAllVMs()
+    {
+        long start = System.currentTimeMillis();
+        crawlVMs(this::addVM, 0);
+        logger.debug("{} vms found in abiquo api while caching them", vmsById.size());
+        reconciliationStats =
+            new CacheReconciliationStats(LocalDateTime.now(),
+                System.currentTimeMillis() - start,
+                vmsById.size(),
+                0,
+                0,
+                0,
+                0);
+    }
+
+    /**
+     * Uses the crawl strategy to pass every virtual machine known to the API to the consumer,
+     * together with the name of the machine it is deployed on if the strategy knows it.
+     * 
+     * @param consumer receiver of the virtual machines and their hypervisor names
+     * @param pacingMillis pause before each request for a collection. Zero means no pause.
+     */
+    private void crawlVMs(final BiConsumer<VirtualMachineDto, String> consumer,
+        final long pacingMillis)
+    {
+        crawlStrategy.crawl(new PacedResourceReader(pacingMillis), consumer);
+    }
+
+    /**
+     * Reads API collections through {@link PaginatedSource}, optionally pausing before each one
+     */
+    private class PacedResourceReader implements ResourceReader
+    {
+        private final long pacingMillis;
+
+        PacedResourceReader(final long pacingMillis)
+        {
+            this.pacingMillis = pacingMillis;
+        }
+
+        @Override
+        public <T extends SingleResourceTransportDto> Iterable<T> list(final String path,
+            final Class< ? extends WrapperDto<T>> wrapperDtoClass)
+        {
+            return read(targetAPIBase.path(path), wrapperDtoClass);
+        }
+
+        @Override
+        public <T extends SingleResourceTransportDto> Iterable<T> follow(final RESTLink link,
+            final Class< ? extends WrapperDto<T>> wrapperDtoClass)
+        {
+            return read(client.target(link.getHref()), wrapperDtoClass);
+        }
+
+        private <T extends SingleResourceTransportDto> Iterable<T> read(final WebTarget target,
+            final Class< ? extends WrapperDto<T>> wrapperDtoClass)
+        {
+            pace(pacingMillis);
+            return new PaginatedSource<>(client, target, wrapperDtoClass, CRAWL_PAGE_SIZE);
         }
     }
 
+    private static void pace(final long pacingMillis)
+    {
+        if (pacingMillis > 0)
+        {
+            try
+            {
+                Thread.sleep(pacingMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+        }
+    }
 }
@@ -41,6 +41,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.abiquo.bond.api.EventDispatcher.ShutdownLevel;
+import com.abiquo.bond.api.crawl.VMCrawlStrategy;
 import com.abiquo.bond.api.event.APIEvent;
 import com.abiquo.bond.api.plugin.BackupPluginInterface;
 import com.abiquo.bond.api.plugin.PluginException;
@@ -74,7 +75,7 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
 {
     private final static Logger logger = LoggerFactory.getLogger(OutboundAPIClient.class);
 
-    private MConnector mConnector;
+    private volatile MConnector mConnector;
 
     private ConfigurationData config;
 
@@ -91,12 +92,22 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
 
     private EventStore eventstore;
 
-    private List<APIEvent> msgq = new ArrayList<>();
+    private EventPipeline pipeline;
 
-    private boolean processingEventStore = true;
+    private Optional<CheckpointStore> checkpoint = Optional.absent();
+
+    private Optional<EventDeduplicator> deduplicator = Optional.absent();
+
+    private Optional<EventJournal> journal = Optional.absent();
+
+    private Optional<ReplayCompactor> compactor = Optional.absent();
+
+    private Optional<DeadLetterStore> deadLetters = Optional.absent();
 
     private NameToVMLinks mapNameToVMLinks;
 
+    private VMLifecycleTracker lifecycle = new VMLifecycleTracker();
+
     private APIConnection apiconn;
 
     private RESTLink currUserEditLink;
@@ -122,6 +133,20 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
     {
         this.config = new ConfigurationData(data);
 
+        // Carry on from the saved checkpoint unless the wrapper has said where to start from
+        if (config.getCheckpointFile() != null)
+        {
+            checkpoint = Optional.of(new CheckpointStore(config.getCheckpointFile().toPath()));
+            if (config.getLastProcessedEvent() == null)
+            {
+                Optional<LocalDateTime> saved = checkpoint.get().read();
+                if (saved.isPresent())
+                {
+                    config.setLastProcessedEvent(saved.get());
+                }
+            }
+        }
+
         apiconn =
             new APIConnection(config.getMServer(), config.getMUser(), config.getMUserPassword());
         currUserEditLink = apiconn.getCurrentUserLink();
@@ -134,8 +159,28 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
         }
 
         // Create a cache of the REST links associated with each VM
+        VMCrawlStrategy crawlStrategy;
+        try
+        {
+            crawlStrategy =
+                Class.forName(config.getCrawlStrategy()).asSubclass(VMCrawlStrategy.class)
+                    .newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e)
+        {
+            throw new OutboundAPIClientException("Configuration error", e);
+        }
         mapNameToVMLinks =
-            new NameToVMLinks(config.getMServer(), config.getMUser(), config.getMUserPassword());
+            new NameToVMLinks(config.getMServer(),
+                config.getMUser(),
+                config.getMUserPassword(),
+                crawlStrategy);
+        if (config.getVMCacheReconcilePeriod() > 0)
+        {
+            // Periodically re-crawl the API in case any deploy or undeploy event has been missed
+            mapNameToVMLinks.startReconciler(config.getVMCacheReconcilePeriod(),
+                config.getVMCacheReconcileTimeUnit(), config.getVMCacheReconcilePacing());
+        }
 
         Properties properties = new Properties();
         try
@@ -213,7 +258,76 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
 
         handlers = Collections.unmodifiableSet(plugins);
 
-        eventDispatcher = new EventDispatcher(handlers, 1);
+        eventDispatcher = new EventDispatcher(handlers, config);
+        eventDispatcher.addSaturationListener(new SaturationListener()
+        {
+            @Override
+            public void saturated()
+            {
+                notifyWrapper("Plugins are not keeping up with the events received");
+                if (mConnector != null && !mConnector.pause())
+                {
+                    logger.debug("Connector doesn't support pausing, it will wait for the queues");
+                }
+            }
+
+            @Override
+            public void relieved()
+            {
+                if (mConnector != null)
+                {
+                    mConnector.resume();
+                }
+            }
+        });
+
+        if (config.getJournalDirectory() != null)
+        {
+            try
+            {
+                journal =
+                    Optional.of(new EventJournal(config.getJournalDirectory().toPath(), config
+                        .getJournalSegmentSize(), eventDispatcher::getLastEventTimestamp));
+            }
+            catch (IOException e)
+            {
+                throw new OutboundAPIClientException("Unable to open event journal", e);
+            }
+        }
+
+        if (config.getDeadLetterDirectory() != null)
+        {
+            try
+            {
+                deadLetters =
+                    Optional.of(new DeadLetterStore(config.getDeadLetterDirectory().toPath(),
+                        config.getDeadLetterMaxAttempts(), config.getDeadLetterInitialDelay(),
+                        config.getDeadLetterMaxDelay(), config.getDeadLetterDelayTimeUnit()));
+            }
+            catch (IOException e)
+            {
+                throw new OutboundAPIClientException("Unable to open dead letter store", e);
+            }
+            eventDispatcher.setDeadLetterStore(deadLetters.get());
+        }
+
+        if (config.getDuplicateWindow() > 0)
+        {
+            deduplicator =
+                Optional.of(new EventDeduplicator(config.getDuplicateWindow(), config
+                    .getDuplicateWindowTimeUnit(), config.getDuplicateCapacity()));
+        }
+
+        if (!config.getReplayCompactionRules().isEmpty())
+        {
+            compactor =
+                Optional.of(new ReplayCompactor(config.getReplayCompactionRules(), config
+                    .getReplayCompactionWindow(), this::replay));
+        }
+
+        // Replayed and live events reach the dispatcher through bounded queues, with the replayed
+        // events passed on first
+        pipeline = new EventPipeline(this::dispatch, config.getEventPipelineCapacity());
 
         // Initialise the class that will fecth events from the permanent store that may have been
         // missed since the last time the client was run
@@ -221,7 +335,10 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
             config.getMUser(),
             config.getMUserPassword(),
             currUserEditLink,
-            mapNameToVMLinks);
+            mapNameToVMLinks,
+            lifecycle);
+        eventstore.setPageSize(config.getEventStorePageSize());
+        eventstore.setReplayWindows(config.getEventStoreReplayWindows());
     }
 
     /**
@@ -245,6 +362,23 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
         {
             mapNameToVMLinks.setNotificationHandler(handler);
         }
+        if (checkpoint.isPresent())
+        {
+            checkpoint.get().setNotificationHandler(handler);
+        }
+    }
+
+    /**
+     * Pass a notification back to the client wrapper if a notification handler has been set
+     *
+     * @param msg the notification to be return to the client wrapper
+     */
+    private void notifyWrapper(final String msg)
+    {
+        if (handlerNotifications != null)
+        {
+            handlerNotifications.notification(msg);
+        }
     }
 
     /**
@@ -265,7 +399,8 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
     /**
      * When the wrapper class is closing down it should call this method to get the timestamp of the
      * last outbound api event that has been handled. This timestamp can then be used the next time
-     * the client starts up to fecth messages from the permanent event store.
+     * the client starts up to fecth messages from the permanent event store. If a checkpoint file
+     * has been configured this is done by the client itself.
      *
      * @return Timestamp of last processed outbound api event
      */
@@ -274,6 +409,95 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
         return eventDispatcher.getLastEventTimestamp();
     }
 
+    /**
+     * Returns the number of events queued for each plugin, and how many have been rejected because
+     * the plugin was not keeping up
+     *
+     * @return one entry for each plugin
+     */
+    public List<PluginQueueStats> getPluginQueueStats()
+    {
+        return eventDispatcher.getQueueStats();
+    }
+
+    /**
+     * Returns the events that plugins have failed to process and that are kept for retrying. Empty
+     * if no dead letter directory has been configured.
+     *
+     * @return the dead letters, oldest first
+     */
+    public List<DeadLetter> getDeadLetters()
+    {
+        return deadLetters.isPresent() ? deadLetters.get().list() : Collections
+            .<DeadLetter> emptyList();
+    }
+
+    /**
+     * Retries a dead letter straight away, even if its retries have run out
+     *
+     * @param id identifier of the dead letter
+     * @return false if there is no such dead letter
+     */
+    public boolean requeueDeadLetter(final long id)
+    {
+        return deadLetters.isPresent() && deadLetters.get().requeue(id);
+    }
+
+    /**
+     * Removes a dead letter without retrying it
+     *
+     * @param id identifier of the dead letter
+     * @return false if there is no such dead letter
+     */
+    public boolean discardDeadLetter(final long id)
+    {
+        return deadLetters.isPresent() && deadLetters.get().discard(id);
+    }
+
+    /**
+     * Returns the staleness and diff sizes of the last background reconciliation of the VM link
+     * cache. This can be polled by the wrapper without blocking event processing.
+     *
+     * @return statistics of the last reconciliation
+     */
+    public CacheReconciliationStats getVMCacheReconciliationStats()
+    {
+        return mapNameToVMLinks.getReconciliationStats();
+    }
+
+    /**
+     * Registers a listener that receives the progress of the replay of missed events. The
+     * notification handler set with {@link #setNotificationHandler} receives it too.
+     *
+     * @param listener the listener to add
+     */
+    public void addReplayMetricsListener(final ReplayMetricsListener listener)
+    {
+        eventstore.addReplayMetricsListener(listener);
+    }
+
+    /**
+     * Registers a listener told when the plugins stop keeping up with the events and when they
+     * catch up again. While they are behind, the connector is paused if it supports it.
+     *
+     * @param listener the listener to add
+     */
+    public void addSaturationListener(final SaturationListener listener)
+    {
+        eventDispatcher.addSaturationListener(listener);
+    }
+
+    /**
+     * Returns the latest progress of the replay of missed events. This can be polled by the wrapper
+     * to tell a slow replay from a stuck one.
+     *
+     * @return the latest progress, or absent if no replay has been started
+     */
+    public Optional<ReplayProgress> getReplayProgress()
+    {
+        return eventstore.getReplayProgress();
+    }
+
     /**
      * Start each successfully loaded plugin
      */
@@ -283,7 +507,8 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
             config.getMUser(),
             config.getMUserPassword(),
             currUserEditLink,
-            mapNameToVMLinks);
+            mapNameToVMLinks,
+            lifecycle);
 
         for (BackupPluginInterface plugin : handlersWithResponses)
         {
@@ -295,6 +520,7 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
         {
             try
             {
+                handler.linkToVMCache(mapNameToVMLinks);
                 handler.startup();
             }
             catch (PluginException e)
@@ -303,6 +529,7 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
                 failures.add(e);
             }
         }
+        eventDispatcher.buildRoutes();
     }
 
     /**
@@ -348,6 +575,16 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
                 (Class< ? extends MConnector>) Class.forName(config.getConnector());
             Constructor< ? extends MConnector> constructor =
                 connectorclass.getConstructor(CommsHandler.class);
+            pipeline.start();
+            if (checkpoint.isPresent())
+            {
+                checkpoint.get().start(eventDispatcher::getLastEventTimestamp,
+                    config.getCheckpointInterval(), config.getCheckpointIntervalTimeUnit());
+            }
+            if (deadLetters.isPresent())
+            {
+                deadLetters.get().start(eventDispatcher::retry);
+            }
             mConnector = constructor.newInstance(this);
             mConnector.connect(config.getMServer(), config.getMUser(), config.getMUserPassword());
 
@@ -355,36 +592,40 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
             // time.
             eventstore.setMsgTimeLimit();
 
-            // Check the Event log for any messages missed since the program last ran
-            LocalDateTime lastmsg = config.getLastProcessedEvent();
-            if (lastmsg != null)
+            // Check the Event log for any messages missed since the program last ran. Live events
+            // received meanwhile are held by the pipeline until the replay ends.
+            try
             {
-                eventstore.getMissedEvents(lastmsg, this);
-
-                List<APIEvent> msgqcopy = new ArrayList<>();
-                while (processingEventStore)
+                LocalDateTime lastmsg = config.getLastProcessedEvent();
+                if (lastmsg != null)
                 {
-                    synchronized (msgq)
+                    // Events journaled before a crash are replayed without going back to the API.
+                    // Only what came after them is read from the event store. The journal holds
+                    // the replayed events in order followed by the live events in the order they
+                    // were passed on, so every event up to the latest one journaled is in it,
+                    // unless an earlier event couldn't be journaled.
+                    if (journal.isPresent())
                     {
-                        if (msgq.isEmpty())
+                        for (APIEvent event : journal.get().recover(lastmsg))
                         {
-                            processingEventStore = false;
+                            compact(event);
                         }
-                        else
+                        LocalDateTime lastJournaled = journal.get().getRecoveredUpTo();
+                        if (lastJournaled != null && lastJournaled.isAfter(lastmsg))
                         {
-                            msgqcopy.addAll(msgq);
-                            msgq.clear();
+                            lastmsg = lastJournaled;
                         }
                     }
-                    for (APIEvent event : msgqcopy)
-                    {
-                        handleMessage(event);
-                    }
+                    eventstore.getMissedEvents(lastmsg, this);
                 }
             }
-            else
+            finally
             {
-                processingEventStore = false;
+                if (compactor.isPresent())
+                {
+                    compactor.get().flush();
+                }
+                endReplay();
             }
         }
         catch (ReflectiveOperationException | IllegalArgumentException | SecurityException e)
@@ -393,6 +634,19 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
         }
     }
 
+    private void endReplay() throws OutboundAPIClientException
+    {
+        try
+        {
+            pipeline.endReplay();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new OutboundAPIClientException("Interrupted whilst ending event store replay", e);
+        }
+    }
+
     /**
      * Closes the connection to the M server
      */
@@ -404,21 +658,117 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
             plugin.cancel();
         }
 
-        // Wait for the plugins to stop
+        // Stop passing queued events to the plugins and wait for the plugins to stop
+        pipeline.stop();
+        if (deadLetters.isPresent())
+        {
+            deadLetters.get().stop();
+        }
         eventDispatcher.shutdown(ShutdownLevel.AWAIT_RUNNING_TASKS);
 
+        // Save the position reached once the plugins have finished
+        if (checkpoint.isPresent())
+        {
+            checkpoint.get().stop();
+        }
+        if (journal.isPresent())
+        {
+            journal.get().close();
+        }
+
         // Disconnect from the Outbound API
         if (mConnector != null)
         {
             mConnector.disconnect();
         }
+        mapNameToVMLinks.stopReconciler();
         shutdown = true;
     }
 
+    /**
+     * Passes an event to the plugins unless it has already been passed to them. Live events are
+     * journaled here rather than when they are received, so that none is journaled before the last
+     * replayed event: the latest journaled timestamp is then a safe point to resume the replay
+     * from after a crash.
+     */
+    private void dispatch(final APIEvent apievent)
+    {
+        if (!pipeline.isReplaying())
+        {
+            journal(apievent);
+        }
+        if (!deduplicator.isPresent() || deduplicator.get().firstSeen(apievent))
+        {
+            eventDispatcher.dispatchEvent(apievent);
+        }
+    }
+
+    /**
+     * Saves a translated event to the journal, if there is one, before it is dispatched. Replayed
+     * events are journaled as they are read from the event store and live events as they are
+     * passed on after the replay.
+     */
+    private void journal(final APIEvent apievent)
+    {
+        if (journal.isPresent())
+        {
+            try
+            {
+                journal.get().append(apievent);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Unable to journal event " + apievent, e);
+                notifyWrapper("Unable to journal event", e);
+            }
+        }
+    }
+
+    /**
+     * Accepts an event read from the Event Store during the replay that {@link #run} performs.
+     * Replayed events are only passed on until the replay ends, so the method must not be called
+     * once {@link #run} has returned.
+     *
+     * @throws IllegalStateException if the replay has already ended
+     */
     @Override
     public void handleMessage(final APIEvent apievent)
     {
-        eventDispatcher.dispatchEvent(apievent);
+        if (pipeline.isReplayEnded())
+        {
+            throw new IllegalStateException("Event store replay has already ended, event "
+                + apievent + " can not be accepted");
+        }
+        journal(apievent);
+        compact(apievent);
+    }
+
+    /**
+     * Passes a replayed event through the compaction rules, if any
+     */
+    private void compact(final APIEvent apievent)
+    {
+        if (compactor.isPresent())
+        {
+            compactor.get().add(apievent);
+        }
+        else
+        {
+            replay(apievent);
+        }
+    }
+
+    private void replay(final APIEvent apievent)
+    {
+        try
+        {
+            pipeline.addReplayed(apievent);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
     }
 
     @Override
@@ -435,19 +785,15 @@ public class OutboundAPIClient implements CommsHandler, EventStoreHandler
             if (optapievent.isPresent())
             {
                 apievent = optapievent.get();
-                if (processingEventStore)
-                {
-                    synchronized (msgq)
-                    {
-                        msgq.add(apievent);
-                    }
-                }
-                else
-                {
-                    handleMessage(apievent);
-                }
+                pipeline.addLive(apievent);
             }
         }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted whilst queueing message from outbound api", e);
+            notifyWrapper("Interrupted whilst queueing message from outbound api", e);
+        }
         catch (IOException | OutboundAPIClientException e)
         {
             logger.warn("Exception whilst translating message from outbound api", e);
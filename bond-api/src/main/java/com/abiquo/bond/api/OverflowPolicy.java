@@ -0,0 +1,47 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+/**
+ * What the dispatcher does with an event for a plugin whose queue is full
+ * 
+ * @see PluginBulkhead
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Wait for the plugin to make room. No event is lost, but the wait happens on the thread that
+     * dispatches events to every plugin, so the other plugins stop receiving events until the slow
+     * one catches up. This gives up the isolation between plugins and is only suitable when every
+     * event must reach the plugin and no dead-letter directory is configured.
+     */
+    BLOCK,
+
+    /**
+     * Don't pass the event to the plugin. The rejection is counted and logged, and the other
+     * plugins carry on unaffected. If a dead-letter directory is configured the event is kept
+     * there and retried like any other failure of the plugin; otherwise the watermark is held
+     * before it, so it is replayed after a restart. This is the default, but with the default
+     * queue capacity, which matches the dispatcher's in-flight limit, the queue never fills and no
+     * event is rejected.
+     */
+    REJECT;
+}
@@ -0,0 +1,257 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.model.transport.SingleResourceTransportDto;
+import com.abiquo.model.transport.WrapperDto;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Iterable view of all the elements of a paginated Abiquo API collection. Pages are requested with
+ * the configured page size and, as soon as a page arrives, the request for the following page is
+ * sent in the background, so that page N+1 is usually available by the time page N has been
+ * consumed.
+ * <p>
+ * Each call to {@link #iterator()}, {@link #pages()} or {@link #stream()} starts a new walk from
+ * the first page. Errors fetching a page are thrown from the iterator as unchecked exceptions
+ * wrapping an {@link OutboundAPIClientHTTPException}.
+ * 
+ * @param <T> Dto class of each element of the collection, p.e:
+ *            {@link com.abiquo.server.core.infrastructure.DatacenterDto}
+ */
+class PaginatedSource<T extends SingleResourceTransportDto> implements Iterable<T>
+{
+    private final static Logger logger = LoggerFactory.getLogger(PaginatedSource.class);
+
+    private static final ExecutorService prefetcher = Executors
+        .newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("ABQ_PAGE_PREFETCH-%d")
+            .setDaemon(true).build());
+
+    private final WebTarget firstPage;
+
+    private final Class< ? extends WrapperDto<T>> wrapperDtoClass;
+
+    private final String mediatype;
+
+    private final Function<String, WebTarget> nextPageTarget;
+
+    /**
+     * @param client client used to request the pages
+     * @param target first page of the collection
+     * @param wrapperDtoClass Wrapper dto class that contains each page, p.e:
+     *            {@link com.abiquo.server.core.infrastructure.DatacentersDto}
+     * @param limit number of elements to request per page. Zero or less uses the server's default.
+     */
+    PaginatedSource(final Client client, final WebTarget target,
+        final Class< ? extends WrapperDto<T>> wrapperDtoClass, final int limit)
+    {
+        this(client, target, wrapperDtoClass, limit, client::target);
+    }
+
+    /**
+     * @param nextPageTarget builds the request for a page from the href of a 'next' link. This
+     *            allows query parameters that the server doesn't carry over into its 'next' links
+     *            to be added back.
+     */
+    PaginatedSource(final Client client, final WebTarget target,
+        final Class< ? extends WrapperDto<T>> wrapperDtoClass, final int limit,
+        final Function<String, WebTarget> nextPageTarget)
+    {
+        this.firstPage = limit > 0 ? target.queryParam("limit", limit) : target;
+        this.wrapperDtoClass = wrapperDtoClass;
+        this.nextPageTarget = nextPageTarget;
+        try
+        {
+            mediatype = (String) wrapperDtoClass.getField("MEDIA_TYPE").get(wrapperDtoClass);
+        }
+        catch (IllegalArgumentException | IllegalAccessException | NoSuchFieldException
+            | SecurityException e)
+        {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * @return an iterator over the pages of the collection. Each page is returned as soon as it has
+     *         been received, while the next one is fetched.
+     */
+    Iterator<List<T>> pages()
+    {
+        return new PageIterator(firstPage);
+    }
+
+    @Override
+    public Iterator<T> iterator()
+    {
+        return new ElementIterator(pages());
+    }
+
+    @Override
+    public Spliterator<T> spliterator()
+    {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED
+            | Spliterator.NONNULL);
+    }
+
+    Stream<T> stream()
+    {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * The returned stream reads pages sequentially but hands batches of elements to parallel
+     * consumers.
+     */
+    Stream<T> parallelStream()
+    {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    private Page<T> fetch(final WebTarget target)
+    {
+        logger.trace("Fetching page {}", target.getUri());
+        Response response = target.request(mediatype).get();
+        int status = response.getStatus();
+        if (status == 200)
+        {
+            WrapperDto<T> wrapperDto = response.readEntity(wrapperDtoClass);
+            List<T> collection = wrapperDto.getCollection();
+            return new Page<>(collection != null ? collection : Collections.<T> emptyList(),
+                wrapperDto.searchLink("next"));
+        }
+        throw Throwables.propagate(new OutboundAPIClientHTTPException(String.format(
+            "Unable to retrieve page: %s", response.getStatusInfo().getReasonPhrase()),
+            target.getUri(),
+            status));
+    }
+
+    private CompletableFuture<Page<T>> prefetch(final WebTarget target)
+    {
+        return CompletableFuture.supplyAsync(() -> fetch(target), prefetcher);
+    }
+
+    private static class Page<T>
+    {
+        final List<T> elements;
+
+        final RESTLink next;
+
+        Page(final List<T> elements, final RESTLink next)
+        {
+            this.elements = elements;
+            this.next = next;
+        }
+    }
+
+    private class PageIterator implements Iterator<List<T>>
+    {
+        private CompletableFuture<Page<T>> pending;
+
+        PageIterator(final WebTarget first)
+        {
+            pending = prefetch(first);
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return pending != null;
+        }
+
+        @Override
+        public List<T> next()
+        {
+            if (pending == null)
+            {
+                throw new NoSuchElementException();
+            }
+            Page<T> page;
+            try
+            {
+                page = pending.join();
+            }
+            catch (CompletionException e)
+            {
+                pending = null;
+                throw Throwables.propagate(e.getCause());
+            }
+            pending =
+                page.next != null ? prefetch(nextPageTarget.apply(page.next.getHref())) : null;
+            return page.elements;
+        }
+    }
+
+    private class ElementIterator implements Iterator<T>
+    {
+        private final Iterator<List<T>> pages;
+
+        private Iterator<T> current = Collections.emptyIterator();
+
+        ElementIterator(final Iterator<List<T>> pages)
+        {
+            this.pages = pages;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            // Skip over any empty pages
+            while (!current.hasNext() && pages.hasNext())
+            {
+                current = pages.next().iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Runs tasks on a fixed number of serial lanes sharing a backing executor. Each task is submitted
+ * with a key, and the tasks with the same key run one at a time in submission order. Each key has
+ * its own queue, and a lane that becomes free takes the next key that has tasks waiting, so a slow
+ * task only holds up the tasks with its own key.
+ * <p>
+ * Tasks are also submitted with an {@link EventPriority}. Keys waiting for a lane are queued by the
+ * priority of their next task and the classes are served by smooth weighted round robin: with
+ * weights of 4, 2 and 1, for example, four in every seven free lanes go to HIGH while it has keys
+ * waiting.
+ * <p>
+ * The dispatcher keys events by VM so that, for example, the deploy, backup and undeploy of one VM
+ * reach a plugin in that order while events for other VMs are processed alongside.
+ */
+class PartitionedExecutor
+{
+    private final static Logger logger = LoggerFactory.getLogger(PartitionedExecutor.class);
+
+    private static final Object NULL_KEY = new Object();
+
+    private static final EventPriority[] PRIORITIES = EventPriority.values();
+
+    private final ExecutorService backing;
+
+    private final int laneCount;
+
+    private final int[] weights = new int[PRIORITIES.length];
+
+    private final int[] credits = new int[PRIORITIES.length];
+
+    /**
+     * Queues of the keys with tasks queued or running
+     */
+    private final Map<Object, KeyQueue> keys = new HashMap<>();
+
+    /**
+     * Keys with tasks waiting for a lane, by the priority of their next task
+     */
+    private final List<Deque<KeyQueue>> ready;
+
+    /**
+     * Number of lanes running a task or waiting for an asynchronous one to complete
+     */
+    private int busyLanes = 0;
+
+    private boolean shutdown = false;
+
+    /**
+     * @param backing executor the lanes run on. It should have at least as many threads as there
+     *            are lanes for all of them to run in parallel.
+     * @param laneCount number of lanes
+     */
+    PartitionedExecutor(final ExecutorService backing, final int laneCount)
+    {
+        this(backing, laneCount, new EnumMap<EventPriority, Integer>(EventPriority.class));
+    }
+
+    /**
+     * @param backing executor the lanes run on. It should have at least as many threads as there
+     *            are lanes for all of them to run in parallel.
+     * @param laneCount number of lanes
+     * @param weights share of the lanes given to each priority class. Classes without a weight get
+     *            a weight of 1.
+     */
+    PartitionedExecutor(final ExecutorService backing, final int laneCount,
+        final Map<EventPriority, Integer> weights)
+    {
+        this.backing = backing;
+        this.laneCount = Math.max(1, laneCount);
+        this.ready = new ArrayList<>(PRIORITIES.length);
+        for (EventPriority priority : PRIORITIES)
+        {
+            Integer weight = weights.get(priority);
+            this.weights[priority.ordinal()] = weight == null ? 1 : Math.max(1, weight);
+            this.ready.add(new ArrayDeque<KeyQueue>());
+        }
+    }
+
+    int getLaneCount()
+    {
+        return laneCount;
+    }
+
+    /**
+     * Returns the lane a key would use if keys were spread evenly over the lanes. Used to group
+     * keys, as a key doesn't have a fixed lane.
+     * 
+     * @param key the key, may be null
+     */
+    int laneOf(final Object key)
+    {
+        if (key == null)
+        {
+            return 0;
+        }
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % laneCount;
+    }
+
+    /**
+     * Queues a task with normal priority.
+     * 
+     * @see #submit(Object, EventPriority, Callable)
+     */
+    <T> ListenableFuture<T> submit(final Object key, final Callable<T> task)
+    {
+        return submit(key, EventPriority.NORMAL, task);
+    }
+
+    /**
+     * Queues a task behind the other tasks for its key.
+     * 
+     * @param key identity of the entity the task relates to. Tasks without a key are all run one
+     *            at a time.
+     * @param priority priority of the task when waiting for a lane
+     * @param task the task
+     * @return a future holding the result of the task
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    <T> ListenableFuture<T> submit(final Object key, final EventPriority priority,
+        final Callable<T> task)
+    {
+        final ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+        enqueue(key, priority, () -> {
+            future.run();
+            return null;
+        });
+        return future;
+    }
+
+    /**
+     * Queues an asynchronous task behind the other tasks for its key. The key's next task doesn't
+     * start until the stage returned by this one has completed, but no thread is held while it
+     * waits. The lane stays busy until then.
+     * 
+     * @param key identity of the entity the task relates to. Tasks without a key are all run one
+     *            at a time.
+     * @param priority priority of the task when waiting for a lane
+     * @param task the task, which starts the work and returns a stage completed when it is done
+     * @return a future holding the result of the stage
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    <T> ListenableFuture<T> submitAsync(final Object key, final EventPriority priority,
+        final Callable< ? extends CompletionStage<T>> task)
+    {
+        final SettableFuture<T> future = SettableFuture.create();
+        enqueue(key, priority, () -> {
+            CompletionStage<T> stage;
+            try
+            {
+                stage = task.call();
+            }
+            catch (Throwable t)
+            {
+                future.setException(t);
+                return null;
+            }
+            if (stage == null)
+            {
+                future.setException(new NullPointerException("Task returned no stage"));
+                return null;
+            }
+            return stage.whenComplete((result, t) -> {
+                if (t == null)
+                {
+                    future.set(result);
+                }
+                else
+                {
+                    future.setException(t instanceof CompletionException && t.getCause() != null
+                        ? t.getCause() : t);
+                }
+            });
+        });
+        return future;
+    }
+
+    /**
+     * Stops accepting tasks. Tasks already queued are run.
+     */
+    void shutdown()
+    {
+        synchronized (this)
+        {
+            shutdown = true;
+        }
+        backing.shutdown();
+    }
+
+    /**
+     * Stops accepting tasks, discards the queued ones and interrupts those running.
+     */
+    void shutdownNow()
+    {
+        synchronized (this)
+        {
+            shutdown = true;
+            for (KeyQueue queue : keys.values())
+            {
+                queue.tasks.clear();
+            }
+            for (Deque<KeyQueue> waiting : ready)
+            {
+                waiting.clear();
+            }
+        }
+        backing.shutdownNow();
+    }
+
+    boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return backing.awaitTermination(timeout, unit);
+    }
+
+    private void enqueue(final Object key, final EventPriority priority, final LaneTask task)
+    {
+        KeyQueue start;
+        synchronized (this)
+        {
+            if (shutdown)
+            {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            Object k = key == null ? NULL_KEY : key;
+            KeyQueue queue = keys.get(k);
+            if (queue == null)
+            {
+                queue = new KeyQueue(k);
+                keys.put(k, queue);
+            }
+            queue.tasks.add(new QueuedTask(task, priority));
+            if (!queue.active && !queue.waiting)
+            {
+                makeReady(queue);
+            }
+            start = busyLanes < laneCount ? nextReady() : null;
+            if (start != null)
+            {
+                busyLanes++;
+            }
+        }
+        if (start != null)
+        {
+            startLane(start);
+        }
+    }
+
+    private void startLane(final KeyQueue queue)
+    {
+        try
+        {
+            backing.execute(() -> run(queue));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Shutting down, so finish the queued tasks on this thread
+            run(queue);
+        }
+    }
+
+    /**
+     * Runs the current task of a key, then carries on with the next key due a lane until there are
+     * none waiting or an asynchronous task has to be waited for
+     */
+    private void run(final KeyQueue first)
+    {
+        KeyQueue queue = first;
+        while (queue != null)
+        {
+            CompletionStage< ? > stage = null;
+            try
+            {
+                stage = queue.current.task.run();
+            }
+            catch (RuntimeException e)
+            {
+                // Future tasks capture their own failures, so this should never happen
+                logger.error("Task failed on partitioned executor lane", e);
+            }
+            if (stage != null && !(stage instanceof Future && ((Future< ? >) stage).isDone()))
+            {
+                // Carry on once the stage completes, without holding this thread
+                final KeyQueue waiting = queue;
+                stage.whenComplete((result, t) -> {
+                    KeyQueue next = finish(waiting);
+                    if (next != null)
+                    {
+                        startLane(next);
+                    }
+                });
+                return;
+            }
+            queue = finish(queue);
+        }
+    }
+
+    /**
+     * Frees the lane used by a key's current task and hands it to the next key due one
+     * 
+     * @return the key to run on the lane, with its current task taken from its queue, or null if
+     *         none is waiting and the lane is now idle
+     */
+    private synchronized KeyQueue finish(final KeyQueue queue)
+    {
+        queue.active = false;
+        queue.current = null;
+        if (queue.tasks.isEmpty())
+        {
+            keys.remove(queue.key);
+        }
+        else
+        {
+            makeReady(queue);
+        }
+        KeyQueue next = nextReady();
+        if (next == null)
+        {
+            busyLanes--;
+        }
+        return next;
+    }
+
+    private void makeReady(final KeyQueue queue)
+    {
+        queue.waiting = true;
+        ready.get(queue.tasks.peek().priority.ordinal()).add(queue);
+    }
+
+    /**
+     * Picks the next key to run by smooth weighted round robin over the priority classes with
+     * keys waiting, and takes its next task
+     */
+    private KeyQueue nextReady()
+    {
+        int total = 0;
+        int best = -1;
+        for (int i = 0; i < ready.size(); i++)
+        {
+            if (!ready.get(i).isEmpty())
+            {
+                credits[i] += weights[i];
+                total += weights[i];
+                if (best < 0 || credits[i] > credits[best])
+                {
+                    best = i;
+                }
+            }
+        }
+        if (best < 0)
+        {
+            return null;
+        }
+        credits[best] -= total;
+        KeyQueue queue = ready.get(best).poll();
+        queue.waiting = false;
+        queue.active = true;
+        queue.current = queue.tasks.poll();
+        return queue;
+    }
+
+    /**
+     * A task run by a lane. An asynchronous task returns the stage the lane has to wait for before
+     * the key's next task can run; others return null.
+     */
+    private interface LaneTask
+    {
+        CompletionStage< ? > run();
+    }
+
+    private static class QueuedTask
+    {
+        private final LaneTask task;
+
+        private final EventPriority priority;
+
+        QueuedTask(final LaneTask task, final EventPriority priority)
+        {
+            this.task = task;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * The tasks for a key. A key is either idle, waiting for a lane or active, in which case its
+     * current task is running or being waited for.
+     */
+    private static class KeyQueue
+    {
+        private final Object key;
+
+        private final Deque<QueuedTask> tasks = new ArrayDeque<>();
+
+        private QueuedTask current;
+
+        private boolean waiting = false;
+
+        private boolean active = false;
+
+        KeyQueue(final Object key)
+        {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import com.google.common.base.Objects;
+
+/**
+ * Limits applied to the queue and executor that each plugin is given by the dispatcher, so that a
+ * slow plugin can't delay the processing of events by the others.
+ * 
+ * @see ConfigurationData#setPluginBulkhead(String, PluginBulkhead)
+ */
+public class PluginBulkhead
+{
+    private final int concurrency;
+
+    private final int capacity;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int threads;
+
+    /**
+     * @param concurrency number of events the plugin can process in parallel, each for a different
+     *            VM
+     * @param capacity maximum number of events queued or being processed by the plugin
+     * @param overflowPolicy what to do with an event when the plugin already has capacity events
+     */
+    public PluginBulkhead(final int concurrency, final int capacity,
+        final OverflowPolicy overflowPolicy)
+    {
+        this(concurrency, capacity, overflowPolicy, concurrency);
+    }
+
+    /**
+     * A plugin whose processEventAsync method returns before the processing completes only uses a
+     * thread while starting each event, so it can have fewer threads than events in progress.
+     * 
+     * @param concurrency number of events the plugin can process in parallel, each for a different
+     *            VM
+     * @param capacity maximum number of events queued or being processed by the plugin
+     * @param overflowPolicy what to do with an event when the plugin already has capacity events
+     * @param threads number of platform threads used to call the plugin
+     */
+    public PluginBulkhead(final int concurrency, final int capacity,
+        final OverflowPolicy overflowPolicy, final int threads)
+    {
+        this.concurrency = Math.max(1, concurrency);
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.threads = Math.max(1, Math.min(threads, this.concurrency));
+    }
+
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this).add("concurrency", concurrency)
+            .add("capacity", capacity).add("overflowPolicy", overflowPolicy)
+            .add("threads", threads).toString();
+    }
+}
@@ -0,0 +1,389 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.abiquo.bond.api.event.APIEventResult;
+import com.abiquo.bond.api.plugin.PluginInterface;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The bounded queue and executor through which events reach a single plugin. Each plugin has its
+ * own threads and lanes, so a plugin that falls behind only fills its own queue; what happens then
+ * depends on the {@link OverflowPolicy} of its {@link PluginBulkhead}.
+ * <p>
+ * If batching is enabled, the events for each lane are collected and passed to the plugin's
+ * processEvents method together once there are enough of them or the first has waited for the
+ * linger time. A lane's batches are processed one after the other, so the events for a VM still
+ * reach the plugin in order. A batch takes the highest priority of its events.
+ */
+class PluginChannel
+{
+    private final static Logger logger = LoggerFactory.getLogger(PluginChannel.class);
+
+    private final PluginInterface plugin;
+
+    private final String name;
+
+    private final PluginBulkhead bulkhead;
+
+    private final PartitionedExecutor executor;
+
+    /**
+     * One permit for each event that can be queued or processing
+     */
+    private final Semaphore capacity;
+
+    private final int batchSize;
+
+    private final long lingerMillis;
+
+    /**
+     * The batch being collected for each lane
+     */
+    private final Batch[] batches;
+
+    /**
+     * Flushes batches whose linger time has passed. Only present if batching is enabled.
+     */
+    private final Optional<ScheduledExecutorService> lingerTimer;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param plugin the plugin the events are for
+     * @param bulkhead limits applied to the plugin
+     * @param mode the kind of threads to call the plugin on
+     * @param batchSize maximum number of events passed to the plugin at once. Batching is disabled
+     *            if this is 1 or less.
+     * @param lingerMillis longest time an event waits for a batch to fill
+     * @param priorityWeights share of the lanes given to each priority class
+     */
+    PluginChannel(final PluginInterface plugin, final PluginBulkhead bulkhead,
+        final DispatchMode mode, final int batchSize, final long lingerMillis,
+        final Map<EventPriority, Integer> priorityWeights)
+    {
+        this.plugin = plugin;
+        this.name = plugin.getThreadName();
+        this.bulkhead = bulkhead;
+        this.capacity = new Semaphore(bulkhead.getCapacity());
+        // Each lane runs one task at a time, so the number of lanes caps the concurrency whatever
+        // kind of threads the lanes run on
+        this.executor =
+            new PartitionedExecutor(createBacking(mode), bulkhead.getConcurrency(),
+                priorityWeights);
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.batches = new Batch[executor.getLaneCount()];
+        if (batchSize > 1)
+        {
+            for (int i = 0; i < batches.length; i++)
+            {
+                batches[i] = new Batch();
+            }
+            lingerTimer =
+                Optional.of(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("ABQ_BATCH_" + name).setDaemon(true).build()));
+        }
+        else
+        {
+            lingerTimer = Optional.absent();
+        }
+    }
+
+    private ExecutorService createBacking(final DispatchMode mode)
+    {
+        String prefix = "ABQ_DISPATCH_" + name + "-";
+        if (mode == DispatchMode.VIRTUAL_THREADS)
+        {
+            Optional<ExecutorService> virtual = VirtualThreads.newThreadPerTaskExecutor(prefix);
+            if (virtual.isPresent())
+            {
+                return virtual.get();
+            }
+            logger.warn("Virtual threads not available, plugin {} will use platform threads", name);
+        }
+        return Executors.newFixedThreadPool(bulkhead.getThreads(), new ThreadFactoryBuilder()
+            .setNameFormat(prefix + "%d").build());
+    }
+
+    PluginInterface getPlugin()
+    {
+        return plugin;
+    }
+
+    /**
+     * Queues an event for the plugin behind the other events for its entity. If the queue is full
+     * the caller either waits for room or gets a future failed with a
+     * {@link RejectedExecutionException}, depending on the overflow policy.
+     * 
+     * @param event the event
+     * @param priority priority of the event when waiting for a lane
+     * @return a future holding the plugin's result for the event
+     */
+    ListenableFuture<APIEventResult> submit(final APIEvent event, final EventPriority priority)
+    {
+        if (!acquire())
+        {
+            long count = rejected.incrementAndGet();
+            logger.warn("Queue of plugin {} is full, event rejected ({} rejected so far)", name,
+                count);
+            return Futures.immediateFailedFuture(new RejectedExecutionException("Queue of plugin "
+                + name + " is full"));
+        }
+
+        ListenableFuture<APIEventResult> future;
+        if (lingerTimer.isPresent())
+        {
+            SettableFuture<APIEventResult> result = SettableFuture.create();
+            batches[executor.laneOf(event.getEntity())].add(event, priority, result);
+            future = result;
+        }
+        else
+        {
+            try
+            {
+                future =
+                    executor.submitAsync(event.getEntity(), priority,
+                        () -> plugin.processEventAsync(event));
+            }
+            catch (RejectedExecutionException e)
+            {
+                capacity.release();
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        submitted.incrementAndGet();
+        future.addListener(() -> {
+            completed.incrementAndGet();
+            capacity.release();
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    private boolean acquire()
+    {
+        if (bulkhead.getOverflowPolicy() == OverflowPolicy.REJECT)
+        {
+            return capacity.tryAcquire();
+        }
+        if (capacity.tryAcquire())
+        {
+            return true;
+        }
+        logger.debug("Queue of plugin {} is full, waiting", name);
+        try
+        {
+            capacity.acquire();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    PluginQueueStats getStats()
+    {
+        return new PluginQueueStats(name, bulkhead, bulkhead.getCapacity()
+            - capacity.availablePermits(), submitted.get(), completed.get(), rejected.get());
+    }
+
+    void shutdown()
+    {
+        if (lingerTimer.isPresent())
+        {
+            // Pass on the events collected so far before the lanes stop accepting them
+            for (Batch batch : batches)
+            {
+                batch.flush();
+            }
+            lingerTimer.get().shutdownNow();
+        }
+        executor.shutdown();
+    }
+
+    void shutdownNow()
+    {
+        if (lingerTimer.isPresent())
+        {
+            lingerTimer.get().shutdownNow();
+            for (Batch batch : batches)
+            {
+                batch.discard();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * The events collected for a lane and the futures to complete with their results. The batch is
+     * also the key its events are run under, so that a lane's batches run one after the other.
+     */
+    private class Batch
+    {
+        private List<APIEvent> events = new ArrayList<>();
+
+        private List<SettableFuture<APIEventResult>> results = new ArrayList<>();
+
+        private EventPriority priority = EventPriority.LOW;
+
+        private ScheduledFuture< ? > linger;
+
+        synchronized void add(final APIEvent event, final EventPriority eventPriority,
+            final SettableFuture<APIEventResult> result)
+        {
+            events.add(event);
+            results.add(result);
+            if (eventPriority.compareTo(priority) < 0)
+            {
+                priority = eventPriority;
+            }
+            if (events.size() >= batchSize)
+            {
+                flush();
+            }
+            else if (events.size() == 1)
+            {
+                try
+                {
+                    linger =
+                        lingerTimer.get().schedule(this::flush, lingerMillis,
+                            TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // Shutting down, so the batch is flushed there
+                }
+            }
+        }
+
+        /**
+         * Passes the events collected to the lane. This is done while holding the lock so that a
+         * flush on size and one on linger can't reach the lane in the wrong order.
+         */
+        synchronized void flush()
+        {
+            if (events.isEmpty())
+            {
+                return;
+            }
+            if (linger != null)
+            {
+                linger.cancel(false);
+                linger = null;
+            }
+            final List<APIEvent> batch = events;
+            final List<SettableFuture<APIEventResult>> futures = results;
+            EventPriority batchPriority = priority;
+            events = new ArrayList<>();
+            results = new ArrayList<>();
+            priority = EventPriority.LOW;
+            try
+            {
+                executor.submit(this, batchPriority, () -> process(batch, futures));
+            }
+            catch (RejectedExecutionException e)
+            {
+                for (SettableFuture<APIEventResult> future : futures)
+                {
+                    future.setException(e);
+                }
+            }
+        }
+
+        synchronized void discard()
+        {
+            for (SettableFuture<APIEventResult> future : results)
+            {
+                future.cancel(false);
+            }
+            events.clear();
+            results.clear();
+        }
+    }
+
+    /**
+     * Passes a batch to the plugin and completes the future of each event with its result. Only
+     * the events the plugin returned no result for are failed.
+     */
+    private Void process(final List<APIEvent> batch,
+        final List<SettableFuture<APIEventResult>> futures)
+    {
+        try
+        {
+            List<APIEventResult> results = plugin.processEvents(batch);
+            for (int i = 0; i < futures.size(); i++)
+            {
+                if (results != null && i < results.size() && results.get(i) != null)
+                {
+                    futures.get(i).set(results.get(i));
+                }
+                else
+                {
+                    futures.get(i).setException(
+                        new IllegalStateException("Plugin " + name + " returned no result for "
+                            + batch.get(i)));
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            // No results are known, so every event of the batch has failed. Futures already
+            // completed keep their result.
+            for (SettableFuture<APIEventResult> future : futures)
+            {
+                future.setException(t);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import com.google.common.base.Objects;
+
+/**
+ * Snapshot of the queue of events waiting for, or being processed by, one plugin. A plugin whose
+ * queue stays full, or that keeps rejecting events, is not keeping up with the rate of events.
+ */
+public class PluginQueueStats
+{
+    private final String pluginName;
+
+    private final PluginBulkhead bulkhead;
+
+    private final int depth;
+
+    private final long submitted;
+
+    private final long completed;
+
+    private final long rejected;
+
+    PluginQueueStats(final String pluginName, final PluginBulkhead bulkhead, final int depth,
+        final long submitted, final long completed, final long rejected)
+    {
+        this.pluginName = pluginName;
+        this.bulkhead = bulkhead;
+        this.depth = depth;
+        this.submitted = submitted;
+        this.completed = completed;
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return the name of the plugin
+     */
+    public String getPluginName()
+    {
+        return pluginName;
+    }
+
+    /**
+     * @return the limits applied to the plugin
+     */
+    public PluginBulkhead getBulkhead()
+    {
+        return bulkhead;
+    }
+
+    /**
+     * @return the number of events queued for, or being processed by, the plugin
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @return the number of events passed to the plugin
+     */
+    public long getSubmitted()
+    {
+        return submitted;
+    }
+
+    /**
+     * @return the number of events the plugin has finished processing, successfully or not
+     */
+    public long getCompleted()
+    {
+        return completed;
+    }
+
+    /**
+     * @return the number of events not passed to the plugin because its queue was full
+     */
+    public long getRejected()
+    {
+        return rejected;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this).add("plugin", pluginName).add("depth", depth)
+            .add("capacity", bulkhead.getCapacity()).add("submitted", submitted)
+            .add("completed", completed).add("rejected", rejected).toString();
+    }
+}
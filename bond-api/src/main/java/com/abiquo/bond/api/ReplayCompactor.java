@@ -0,0 +1,213 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.bond.api.event.APIEvent;
+import com.abiquo.bond.api.event.BackupVMEvent;
+import com.abiquo.bond.api.event.DeployVMEvent;
+import com.abiquo.bond.api.event.UndeployVMEvent;
+import com.abiquo.bond.api.event.VirtualMachineEvent;
+
+/**
+ * Compacts the events replayed from the event store according to a set of
+ * {@link CompactionRule}s, so that catching up after a long outage costs work in proportion to the
+ * final state of each VM rather than to its history.
+ * <p>
+ * Events are held in a window of bounded size. Rules only apply between events that are in the
+ * window at the same time; once the window is full the oldest event is passed on. Events keep their
+ * relative order.
+ */
+class ReplayCompactor
+{
+    private final static Logger logger = LoggerFactory.getLogger(ReplayCompactor.class);
+
+    private final EnumSet<CompactionRule> rules;
+
+    private final int windowSize;
+
+    private final Consumer<APIEvent> downstream;
+
+    private final Deque<Slot> window = new ArrayDeque<>();
+
+    /**
+     * Latest backup event of each VM still in the window
+     */
+    private final Map<Integer, Slot> latestMetadataChange = new HashMap<>();
+
+    /**
+     * Deploy event of each VM still in the window
+     */
+    private final Map<Integer, Slot> pendingDeploy = new HashMap<>();
+
+    private long received = 0;
+
+    private long dropped = 0;
+
+    private static class Slot
+    {
+        final APIEvent event;
+
+        final Integer vmid;
+
+        boolean dropped = false;
+
+        Slot(final APIEvent event, final Integer vmid)
+        {
+            this.event = event;
+            this.vmid = vmid;
+        }
+    }
+
+    /**
+     * @param rules rules to apply
+     * @param windowSize maximum number of events held back
+     * @param downstream receives the events that remain, in order
+     */
+    ReplayCompactor(final EnumSet<CompactionRule> rules, final int windowSize,
+        final Consumer<APIEvent> downstream)
+    {
+        this.rules = EnumSet.copyOf(rules);
+        this.windowSize = Math.max(1, windowSize);
+        this.downstream = downstream;
+    }
+
+    /**
+     * Adds a replayed event, passing on the oldest held event if the window is full. Events are
+     * related by the id of their VM, as VM names are only unique within an enterprise; events of a
+     * VM whose id isn't known are never compacted.
+     */
+    void add(final APIEvent event)
+    {
+        received++;
+        Integer vmid =
+            event instanceof VirtualMachineEvent ? ((VirtualMachineEvent) event).getVMId() : null;
+        if (vmid != null)
+        {
+            if (event instanceof UndeployVMEvent
+                && rules.contains(CompactionRule.CANCEL_DEPLOY_UNDEPLOY)
+                && pendingDeploy.containsKey(vmid))
+            {
+                // The undeploy itself is always passed on, as the deploy may have reached the
+                // plugins before the replay started
+                cancelLifecycle(vmid);
+            }
+
+            Slot slot = new Slot(event, vmid);
+            if (event instanceof BackupVMEvent
+                && rules.contains(CompactionRule.COLLAPSE_METADATA_CHANGES))
+            {
+                Slot superseded = latestMetadataChange.put(vmid, slot);
+                if (superseded != null)
+                {
+                    drop(superseded);
+                }
+            }
+            else if (event instanceof DeployVMEvent)
+            {
+                pendingDeploy.put(vmid, slot);
+            }
+            append(slot);
+        }
+        else
+        {
+            append(new Slot(event, null));
+        }
+    }
+
+    /**
+     * Passes on every event still held. Must be called once the replay has finished.
+     */
+    void flush()
+    {
+        while (!window.isEmpty())
+        {
+            release();
+        }
+        if (dropped > 0)
+        {
+            logger.info("Replay compaction dropped {} of {} events", dropped, received);
+        }
+    }
+
+    private void append(final Slot slot)
+    {
+        window.addLast(slot);
+        while (window.size() > windowSize)
+        {
+            release();
+        }
+    }
+
+    private void release()
+    {
+        Slot slot = window.removeFirst();
+        if (slot.vmid != null)
+        {
+            latestMetadataChange.remove(slot.vmid, slot);
+            pendingDeploy.remove(slot.vmid, slot);
+        }
+        if (!slot.dropped)
+        {
+            downstream.accept(slot.event);
+        }
+    }
+
+    private void drop(final Slot slot)
+    {
+        if (!slot.dropped)
+        {
+            slot.dropped = true;
+            dropped++;
+        }
+    }
+
+    /**
+     * Drops every held event of a VM from its deploy up to the undeploy being added
+     */
+    private void cancelLifecycle(final Integer vmid)
+    {
+        Slot deploy = pendingDeploy.remove(vmid);
+        boolean cancelling = false;
+        Iterator<Slot> slots = window.iterator();
+        while (slots.hasNext())
+        {
+            Slot slot = slots.next();
+            cancelling |= slot == deploy;
+            if (cancelling && vmid.equals(slot.vmid))
+            {
+                drop(slot);
+            }
+        }
+        latestMetadataChange.remove(vmid);
+        logger.debug("Deploy of vm {} cancelled by its undeploy", vmid);
+    }
+}
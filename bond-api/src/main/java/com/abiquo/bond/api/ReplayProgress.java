@@ -0,0 +1,221 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+
+/**
+ * Snapshot of the progress of the replay of missed events from the Event Store. An instance is
+ * immutable; a new one is published by {@link EventStore} after each page of events and when the
+ * replay ends.
+ * <p>
+ * Progress is measured in event time: the replay has to cover the events from the last processed
+ * event up to the time limit, which is when the live connection was established. A replay whose
+ * current event time doesn't move between snapshots is stuck rather than slow, and one whose
+ * snapshot time stops moving has stopped publishing progress at all.
+ */
+public class ReplayProgress
+{
+    private final LocalDateTime startTime;
+
+    private final LocalDateTime limitTime;
+
+    private final LocalDateTime currentEventTime;
+
+    private final long pagesFetched;
+
+    private final long eventsRead;
+
+    private final long eventsDispatched;
+
+    private final long eventsSkipped;
+
+    private final Duration elapsed;
+
+    private final boolean complete;
+
+    private final LocalDateTime snapshotTime;
+
+    ReplayProgress(final LocalDateTime startTime, final LocalDateTime limitTime,
+        final LocalDateTime currentEventTime, final long pagesFetched, final long eventsRead,
+        final long eventsDispatched, final long eventsSkipped, final Duration elapsed,
+        final boolean complete, final LocalDateTime snapshotTime)
+    {
+        this.startTime = startTime;
+        this.limitTime = limitTime;
+        this.currentEventTime = currentEventTime;
+        this.pagesFetched = pagesFetched;
+        this.eventsRead = eventsRead;
+        this.eventsDispatched = eventsDispatched;
+        this.eventsSkipped = eventsSkipped;
+        this.elapsed = elapsed;
+        this.complete = complete;
+        this.snapshotTime = snapshotTime;
+    }
+
+    /**
+     * @return the date of the earliest event requested
+     */
+    public LocalDateTime getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * @return the date after which events are received from the live connection instead
+     */
+    public LocalDateTime getLimitTime()
+    {
+        return limitTime;
+    }
+
+    /**
+     * @return the date of the last event read, if any
+     */
+    public Optional<LocalDateTime> getCurrentEventTime()
+    {
+        return Optional.fromNullable(currentEventTime);
+    }
+
+    public long getPagesFetched()
+    {
+        return pagesFetched;
+    }
+
+    public long getEventsRead()
+    {
+        return eventsRead;
+    }
+
+    /**
+     * @return the number of events passed on for dispatch to the plugins
+     */
+    public long getEventsDispatched()
+    {
+        return eventsDispatched;
+    }
+
+    /**
+     * @return the number of events read that didn't produce an event for the plugins, p.e. those
+     *         generated by the dedicated user
+     */
+    public long getEventsSkipped()
+    {
+        return eventsSkipped;
+    }
+
+    public Duration getElapsed()
+    {
+        return elapsed;
+    }
+
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * @return the wall clock time at which the snapshot was taken, which tells how old it is
+     */
+    public LocalDateTime getSnapshotTime()
+    {
+        return snapshotTime;
+    }
+
+    /**
+     * @return the number of events read per second since the replay started
+     */
+    public double getEventsPerSecond()
+    {
+        long millis = elapsed.toMillis();
+        return millis > 0 ? eventsRead * 1000.0 / millis : 0;
+    }
+
+    /**
+     * @return the fraction, between 0 and 1, of the replay's time range covered so far
+     */
+    public double getFractionComplete()
+    {
+        if (complete)
+        {
+            return 1;
+        }
+        if (currentEventTime == null)
+        {
+            return 0;
+        }
+        long total = Duration.between(startTime, limitTime).toMillis();
+        if (total <= 0)
+        {
+            return 1;
+        }
+        long covered = Duration.between(startTime, currentEventTime).toMillis();
+        return Math.max(0, Math.min(1, (double) covered / total));
+    }
+
+    /**
+     * Estimates the time left by assuming the rest of the time range is covered at the same rate
+     * as the part already covered.
+     * 
+     * @return the estimated time left, or absent if nothing has been covered yet
+     */
+    public Optional<Duration> getEstimatedRemaining()
+    {
+        if (complete)
+        {
+            return Optional.of(Duration.ZERO);
+        }
+        double fraction = getFractionComplete();
+        if (fraction <= 0)
+        {
+            return Optional.absent();
+        }
+        return Optional.of(Duration.ofMillis((long) (elapsed.toMillis() * (1 - fraction)
+            / fraction)));
+    }
+
+    /**
+     * @return the estimated wall clock time at which the replay will complete, counted from when
+     *         the snapshot was taken, or absent if it can't be estimated yet
+     */
+    public Optional<LocalDateTime> getEstimatedCompletion()
+    {
+        Optional<Duration> remaining = getEstimatedRemaining();
+        return remaining.isPresent() ? Optional.of(snapshotTime.plus(remaining.get()))
+            : Optional.<LocalDateTime> absent();
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this).add("current", currentEventTime)
+            .add("limit", limitTime).add("pages", pagesFetched).add("read", eventsRead)
+            .add("dispatched", eventsDispatched).add("skipped", eventsSkipped)
+            .add("events/sec", String.format("%.1f", getEventsPerSecond()))
+            .add("complete", String.format("%.1f%%", getFractionComplete() * 100))
+            .add("eta", getEstimatedCompletion().orNull()).add("at", snapshotTime)
+            .omitNullValues().toString();
+    }
+}
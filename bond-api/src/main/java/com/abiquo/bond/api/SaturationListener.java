@@ -0,0 +1,41 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+/**
+ * Told when the plugins stop keeping up with the events and when they catch up again. The
+ * dispatcher is saturated when it reaches its limit of events in flight, and relieved once half of
+ * them have completed. Notifications are made on dispatcher and plugin threads, one at a time and
+ * in the order the changes happen, so the last one received is always the current state.
+ * Implementations should return quickly and must not wait for events to be dispatched.
+ */
+public interface SaturationListener
+{
+    /**
+     * The dispatcher has reached its limit of events in flight and is waiting for the plugins
+     */
+    public void saturated();
+
+    /**
+     * The plugins have caught up enough for the dispatcher to accept events freely again
+     */
+    public void relieved();
+}
@@ -0,0 +1,50 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.util.Collection;
+import java.util.Set;
+
+import com.abiquo.model.rest.RESTLink;
+import com.google.common.base.Optional;
+
+/**
+ * Read-only view of the cache of VMs known to the client. VMs are indexed primarily by id, which is
+ * unique across the platform, and secondarily by name, hypervisor and enterprise. All lookups are
+ * constant time and never block.
+ */
+public interface VMCache
+{
+    Optional<CachedVM> getVM(int id);
+
+    /**
+     * VM names are only unique within an enterprise, so more than one VM may be returned.
+     */
+    Set<CachedVM> getVMsByName(String name);
+
+    Set<CachedVM> getVMsByHypervisor(String hypervisor);
+
+    Set<CachedVM> getVMsByEnterprise(int enterpriseId);
+
+    Collection<CachedVM> getVMs();
+
+    Optional<RESTLink> getLink(int id, String linktype);
+}
@@ -0,0 +1,50 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+/**
+ * Receives the changes made to the VM cache. A listener subscribed with
+ * {@link NameToVMLinks#subscribe} is first told about every VM already in the cache as an addition,
+ * and then about each change as it happens, so it can maintain its own incremental indexes instead
+ * of scanning the whole cache.
+ * <p>
+ * Notifications are delivered in order on a single dedicated thread, never on the thread that
+ * changed the cache, so implementations don't need to be thread-safe with respect to each other
+ * but should return promptly. All methods do nothing by default.
+ */
+public interface VMCacheListener
+{
+    default void vmAdded(final CachedVM vm)
+    {
+    }
+
+    default void vmRemoved(final CachedVM vm)
+    {
+    }
+
+    /**
+     * @param previous the entry before the change
+     * @param current the entry after the change. It always has the same id as previous.
+     */
+    default void vmUpdated(final CachedVM previous, final CachedVM current)
+    {
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Optional;
+
+/**
+ * Remembers the actions that started the lifecycle transitions of each VM. Both deploys and
+ * undeploys finish with a DEPLOY_FINISH action (ABICLOUDPREMIUM-6135), so the action that started
+ * the transition is needed to tell them apart.
+ * <p>
+ * One instance is shared by the live and the event store paths, which run at the same time with
+ * events of very different ages. VMs are identified by id, as names are only unique within an
+ * enterprise. Each VM keeps the last few transitions started, in event time order, and a lookup
+ * only considers the transitions started no later than the event being processed, so a replayed
+ * event is never matched with a transition that the live path recorded after it. A finishing
+ * event removes its transition and any older one, and leaves the later ones in place.
+ * <p>
+ * A transition is ignored once it is older than a maximum age measured in event time, and the
+ * least recently recorded VMs are dropped beyond a maximum number of VMs. Each transition is
+ * packed into a single long holding the event time and the phase.
+ */
+class VMLifecycleTracker
+{
+    /**
+     * The actions that start a lifecycle transition
+     */
+    enum Phase
+    {
+        CREATE, DEPLOY, UNDEPLOY;
+
+        private static final String PREFIX = "VIRTUAL_MACHINE_";
+
+        /**
+         * Finds the phase started by an action, as named in live events (e.g. UNDEPLOY) or in the
+         * event store (e.g. VIRTUAL_MACHINE_UNDEPLOY)
+         */
+        static Optional<Phase> of(final String action)
+        {
+            if (action == null)
+            {
+                return Optional.absent();
+            }
+            String name = action.toUpperCase();
+            if (name.startsWith(PREFIX))
+            {
+                name = name.substring(PREFIX.length());
+            }
+            for (Phase phase : values())
+            {
+                if (phase.name().equals(name))
+                {
+                    return Optional.of(phase);
+                }
+            }
+            return Optional.absent();
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = 10000;
+
+    static final long DEFAULT_MAX_AGE_HOURS = 12;
+
+    /**
+     * Maximum number of transitions remembered for each VM
+     */
+    static final int HISTORY = 4;
+
+    private static final int PHASE_BITS = 2;
+
+    private static final long PHASE_MASK = (1L << PHASE_BITS) - 1;
+
+    private final int capacity;
+
+    private final long maxAgeMillis;
+
+    /**
+     * Packed transitions of each VM, oldest first, with the VMs in the order they were recorded
+     */
+    private final LinkedHashMap<Integer, long[]> phases;
+
+    VMLifecycleTracker()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE_HOURS, TimeUnit.HOURS);
+    }
+
+    /**
+     * @param capacity maximum number of VMs tracked
+     * @param maxAge age in event time after which an unfinished transition is ignored
+     * @param unit unit of the maximum age
+     */
+    VMLifecycleTracker(final int capacity, final long maxAge, final TimeUnit unit)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.maxAgeMillis = unit.toMillis(maxAge);
+        this.phases = new LinkedHashMap<Integer, long[]>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, long[]> eldest)
+            {
+                return size() > VMLifecycleTracker.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Records the start of a transition.
+     * 
+     * @param vmid id of the VM
+     * @param phase the action that started the transition
+     * @param when time of the event
+     */
+    synchronized void started(final Integer vmid, final Phase phase, final LocalDateTime when)
+    {
+        if (vmid == null)
+        {
+            return;
+        }
+        long packed = toMillis(when) << PHASE_BITS | phase.ordinal();
+        // Re-insert so that the VM moves to the end of the recording order
+        long[] starts = phases.remove(vmid);
+        if (starts == null)
+        {
+            phases.put(vmid, new long[] {packed});
+            return;
+        }
+        int position = 0;
+        while (position < starts.length && starts[position] <= packed)
+        {
+            if (starts[position] == packed)
+            {
+                // The same event seen by both paths
+                phases.put(vmid, starts);
+                return;
+            }
+            position++;
+        }
+        long[] updated = new long[starts.length + 1];
+        System.arraycopy(starts, 0, updated, 0, position);
+        updated[position] = packed;
+        System.arraycopy(starts, position, updated, position + 1, starts.length - position);
+        if (updated.length > HISTORY)
+        {
+            updated = Arrays.copyOfRange(updated, updated.length - HISTORY, updated.length);
+        }
+        phases.put(vmid, updated);
+    }
+
+    /**
+     * Returns the phase of the transition in progress for a VM at the time of an event without
+     * ending it.
+     * 
+     * @param vmid id of the VM
+     * @param when time of the event being processed. Transitions started after it are ignored.
+     */
+    synchronized Optional<Phase> current(final Integer vmid, final LocalDateTime when)
+    {
+        long[] starts = vmid != null ? phases.get(vmid) : null;
+        if (starts == null)
+        {
+            return Optional.absent();
+        }
+        long millis = toMillis(when);
+        int latest = latestStarted(starts, millis);
+        if (latest < 0 || millis - (starts[latest] >> PHASE_BITS) > maxAgeMillis)
+        {
+            return Optional.absent();
+        }
+        return Optional.of(Phase.values()[(int) (starts[latest] & PHASE_MASK)]);
+    }
+
+    /**
+     * Ends the transition in progress for a VM at the time of an event. Transitions started after
+     * the event are kept.
+     * 
+     * @param vmid id of the VM
+     * @param when time of the finishing event
+     * @return the phase that started the transition, if known
+     */
+    synchronized Optional<Phase> finished(final Integer vmid, final LocalDateTime when)
+    {
+        Optional<Phase> phase = current(vmid, when);
+        long[] starts = vmid != null ? phases.get(vmid) : null;
+        if (starts != null)
+        {
+            int latest = latestStarted(starts, toMillis(when));
+            if (latest == starts.length - 1)
+            {
+                phases.remove(vmid);
+            }
+            else if (latest >= 0)
+            {
+                phases.put(vmid, Arrays.copyOfRange(starts, latest + 1, starts.length));
+            }
+        }
+        return phase;
+    }
+
+    synchronized int size()
+    {
+        return phases.size();
+    }
+
+    /**
+     * @return the index of the latest transition started no later than the given time, or -1 if
+     *         there is none
+     */
+    private static int latestStarted(final long[] starts, final long millis)
+    {
+        int latest = -1;
+        while (latest + 1 < starts.length && starts[latest + 1] >> PHASE_BITS <= millis)
+        {
+            latest++;
+        }
+        return latest;
+    }
+
+    private static long toMillis(final LocalDateTime time)
+    {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
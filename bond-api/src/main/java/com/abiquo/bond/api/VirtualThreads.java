@@ -0,0 +1,113 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+
+/**
+ * Access to virtual threads when the runtime supports them. The client is built for Java 8, so the
+ * API is looked up by reflection.
+ */
+class VirtualThreads
+{
+    private final static Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method FACTORY;
+
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newExecutor = null;
+        try
+        {
+            // Look the builder methods up on the public interface, as the implementation is hidden
+            Class< ? > builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newExecutor =
+                Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        }
+        catch (ClassNotFoundException | NoSuchMethodException e)
+        {
+            logger.debug("Virtual threads are not supported by this runtime");
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private VirtualThreads()
+    {
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    static boolean isSupported()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task
+     * 
+     * @param namePrefix prefix of the thread names, which are followed by a counter
+     * @return the executor, or absent if the runtime doesn't support virtual threads
+     */
+    static Optional<ExecutorService> newThreadPerTaskExecutor(final String namePrefix)
+    {
+        if (!isSupported())
+        {
+            return Optional.absent();
+        }
+        try
+        {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+            return Optional.of((ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null,
+                factory));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            logger.warn("Creation of virtual thread executor failed", e);
+            return Optional.absent();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the timestamp up to which every dispatched event has been completely processed. Events are
+ * numbered as they are dispatched and may complete in any order; the watermark only moves past an
+ * event once it and every event dispatched before it have completed, so a restart from the
+ * watermark never skips an event still in flight.
+ * <p>
+ * Completions are recorded in a ring buffer without locking. The number of events in flight is
+ * bounded by the size of the ring: {@link #register} waits for the oldest event to complete when
+ * the ring is full.
+ */
+class Watermark
+{
+    private final static Logger logger = LoggerFactory.getLogger(Watermark.class);
+
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * How often the wait for a full ring is logged
+     */
+    private static final long WAIT_WARNING_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final int mask;
+
+    /**
+     * Event timestamps in epoch milliseconds, indexed by sequence number modulo the ring size
+     */
+    private final AtomicLongArray timestamps;
+
+    /**
+     * Sequence number of the last event completed in each slot
+     */
+    private final AtomicLongArray completed;
+
+    /**
+     * Next sequence number to give out
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Sequence number of the oldest event not yet known to be complete
+     */
+    private final AtomicLong low = new AtomicLong();
+
+    private final AtomicLong watermark = new AtomicLong(NONE);
+
+    Watermark()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of events in flight, rounded up to a power of two
+     */
+    Watermark(final int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        timestamps = new AtomicLongArray(size);
+        completed = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            completed.set(i, -1);
+        }
+    }
+
+    /**
+     * Numbers an event about to be dispatched, waiting if the ring is full. The ring only fills
+     * when the oldest event in flight doesn't complete, so the wait is logged as a warning, and
+     * again every minute while it lasts.
+     * 
+     * @param timestamp timestamp of the event
+     * @return the event's sequence number, to be passed to {@link #complete}
+     */
+    long register(final LocalDateTime timestamp)
+    {
+        long millis = timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long seq = next.getAndIncrement();
+        long nextWarning = System.nanoTime();
+        while (seq - low.get() > mask)
+        {
+            if (System.nanoTime() - nextWarning >= 0)
+            {
+                logger.warn("{} events in flight behind the event from {}, which has not "
+                    + "completed; waiting for it", mask + 1, LocalDateTime.ofInstant(Instant
+                    .ofEpochMilli(timestamps.get((int) (low.get() & mask))), ZoneId
+                    .systemDefault()));
+                nextWarning = System.nanoTime() + WAIT_WARNING_NANOS;
+            }
+            LockSupport.parkNanos(10000);
+        }
+        timestamps.set((int) (seq & mask), millis);
+        return seq;
+    }
+
+    /**
+     * Records that an event has been processed by all the plugins interested in it.
+     * 
+     * @param seq the sequence number returned by {@link #register}
+     */
+    void complete(final long seq)
+    {
+        completed.set((int) (seq & mask), seq);
+        advance();
+    }
+
+    /**
+     * @return the timestamp up to which all events have been processed, or null if no event has
+     *         completed yet
+     */
+    LocalDateTime get()
+    {
+        long millis = watermark.get();
+        return millis == NONE ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(millis),
+            ZoneId.systemDefault());
+    }
+
+    /**
+     * @return the number of events dispatched but not yet covered by the watermark
+     */
+    long getInFlight()
+    {
+        return next.get() - low.get();
+    }
+
+    private void advance()
+    {
+        while (true)
+        {
+            long seq = low.get();
+            int slot = (int) (seq & mask);
+            if (completed.get(slot) != seq)
+            {
+                return;
+            }
+            // Read the timestamp before moving on, as the slot can be reused once low has moved
+            long millis = timestamps.get(slot);
+            if (low.compareAndSet(seq, seq + 1))
+            {
+                long current;
+                do
+                {
+                    current = watermark.get();
+                }
+                while (millis > current && !watermark.compareAndSet(current, millis));
+            }
+        }
+    }
+}
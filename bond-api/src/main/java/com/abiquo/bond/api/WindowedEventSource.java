@@ -0,0 +1,275 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.server.core.event.EventDto;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads a range of the Event Store split into consecutive time windows. Each window is read by its
+ * own thread through its own paginated cursor, up to a bounded number of pages ahead, and the
+ * events of all the windows are merged back into timestamp order.
+ * <p>
+ * Window bounds are given in epoch seconds. An event whose second is the upper bound of a window is
+ * taken from the following window, so events on a boundary are not returned twice.
+ */
+class WindowedEventSource implements Closeable
+{
+    private final static Logger logger = LoggerFactory.getLogger(WindowedEventSource.class);
+
+    private final List<Window> windows;
+
+    private final int bufferPages;
+
+    private final int batchSize;
+
+    private final ExecutorService readers;
+
+    /**
+     * A time window of the Event Store
+     */
+    static class Window
+    {
+        final PaginatedSource<EventDto> source;
+
+        final long fromSecond;
+
+        final long toSecond;
+
+        /**
+         * @param source cursor over the events of the window, in ascending timestamp order
+         * @param fromSecond first second of the window
+         * @param toSecond last second of the window. Events in this second are dropped unless this
+         *            is the last window.
+         */
+        Window(final PaginatedSource<EventDto> source, final long fromSecond, final long toSecond)
+        {
+            this.source = source;
+            this.fromSecond = fromSecond;
+            this.toSecond = toSecond;
+        }
+    }
+
+    /**
+     * Starts reading every window.
+     * 
+     * @param windows consecutive windows, earliest first
+     * @param bufferPages maximum number of pages each window reads ahead of the merge
+     * @param batchSize number of merged events returned in each batch
+     */
+    WindowedEventSource(final List<Window> windows, final int bufferPages, final int batchSize)
+    {
+        this.windows = windows;
+        this.bufferPages = Math.max(1, bufferPages);
+        this.batchSize = Math.max(1, batchSize);
+        readers =
+            Executors.newFixedThreadPool(windows.size(), new ThreadFactoryBuilder()
+                .setNameFormat("ABQ_REPLAY_WINDOW-%d").setDaemon(true).build());
+        logger.debug("Reading the event store in {} windows", windows.size());
+    }
+
+    /**
+     * @return an iterator over batches of events in timestamp order. Errors reading a window are
+     *         thrown from the iterator as unchecked exceptions.
+     */
+    Iterator<List<EventDto>> batches()
+    {
+        PriorityQueue<Cursor> heads =
+            new PriorityQueue<>(Math.max(1, windows.size()), Comparator.comparing(
+                (final Cursor c) -> c.head().getTimestamp()).thenComparingInt(c -> c.index));
+        for (int i = 0; i < windows.size(); i++)
+        {
+            Cursor cursor = new Cursor(i, bufferPages);
+            Window window = windows.get(i);
+            boolean last = i == windows.size() - 1;
+            readers.execute(() -> cursor.read(window, last));
+            if (cursor.advance())
+            {
+                heads.add(cursor);
+            }
+        }
+
+        return new Iterator<List<EventDto>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public List<EventDto> next()
+            {
+                if (heads.isEmpty())
+                {
+                    throw new NoSuchElementException();
+                }
+                List<EventDto> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && !heads.isEmpty())
+                {
+                    Cursor cursor = heads.poll();
+                    batch.add(cursor.head());
+                    if (cursor.advance())
+                    {
+                        heads.add(cursor);
+                    }
+                }
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Stops the window readers. Pages already read ahead are discarded.
+     */
+    @Override
+    public void close()
+    {
+        readers.shutdownNow();
+    }
+
+    /**
+     * Unit of transfer between a window reader and the merge: a page of events, the end of the
+     * window or the error that stopped it
+     */
+    private static class Chunk
+    {
+        static final Chunk END = new Chunk(Collections.<EventDto> emptyList(), null);
+
+        final List<EventDto> events;
+
+        final RuntimeException error;
+
+        Chunk(final List<EventDto> events, final RuntimeException error)
+        {
+            this.events = events;
+            this.error = error;
+        }
+    }
+
+    private static class Cursor
+    {
+        final int index;
+
+        private final BlockingQueue<Chunk> chunks;
+
+        private List<EventDto> page = Collections.emptyList();
+
+        private int position = -1;
+
+        Cursor(final int index, final int bufferPages)
+        {
+            this.index = index;
+            this.chunks = new ArrayBlockingQueue<>(bufferPages);
+        }
+
+        /**
+         * Runs on the window's reader thread
+         */
+        void read(final Window window, final boolean last)
+        {
+            try
+            {
+                try
+                {
+                    Iterator<List<EventDto>> pages = window.source.pages();
+                    while (pages.hasNext())
+                    {
+                        List<EventDto> events = new ArrayList<>();
+                        for (EventDto event : pages.next())
+                        {
+                            long second = event.getTimestamp().getTime() / 1000;
+                            if (second >= window.fromSecond && (last || second < window.toSecond))
+                            {
+                                events.add(event);
+                            }
+                        }
+                        if (!events.isEmpty())
+                        {
+                            chunks.put(new Chunk(events, null));
+                        }
+                    }
+                    chunks.put(Chunk.END);
+                }
+                catch (RuntimeException e)
+                {
+                    chunks.put(new Chunk(null, e));
+                }
+            }
+            catch (InterruptedException e)
+            {
+                logger.debug("Reading of event store window {} cancelled", index);
+            }
+        }
+
+        EventDto head()
+        {
+            return page.get(position);
+        }
+
+        /**
+         * Moves to the next event, waiting for the reader if needed.
+         * 
+         * @return false once the window has no more events
+         */
+        boolean advance()
+        {
+            position++;
+            if (position < page.size())
+            {
+                return true;
+            }
+            try
+            {
+                Chunk chunk = chunks.take();
+                if (chunk.error != null)
+                {
+                    throw chunk.error;
+                }
+                page = chunk.events;
+                position = 0;
+                return !page.isEmpty();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+}
@@ -26,11 +26,22 @@ package com.abiquo.bond.api;
  * will then be up to the client wrapper class to decide what action to take in response (close
  * down, notify user in some way, etc).
  */
-public interface WrapperNotification
+public interface WrapperNotification extends ReplayMetricsListener
 {
     public void notification(String msg);
 
     public void notification(String msg, Throwable t);
 
     public void notification(String msg, String url, int statuscode);
+
+    /**
+     * Receives the progress of the replay of missed events from the Event Store. The default
+     * implementation ignores it.
+     * 
+     * @param progress snapshot of the replay progress
+     */
+    @Override
+    public default void replayProgress(final ReplayProgress progress)
+    {
+    }
 }
@@ -62,6 +62,14 @@ public class WAsyncConnector implements MConnector
 
     private Socket socket;
 
+    /**
+     * While true, the thread delivering messages waits before passing on the next one, so that
+     * no more data is read from the connection
+     */
+    private boolean paused = false;
+
+    private final Object pauseLock = new Object();
+
     public WAsyncConnector(final CommsHandler mh)
     {
         this.msghandler = mh;
@@ -139,6 +147,7 @@ public class WAsyncConnector implements MConnector
             public void on(final String t)
             {
                 logger.debug("'M' Server comms: Message: " + t);
+                awaitResume();
                 msghandler.handleMessage(t);
             }
         }).on(Event.MESSAGE_BYTES, new Function<String>()
@@ -202,10 +211,62 @@ public class WAsyncConnector implements MConnector
     @Override
     public void disconnect()
     {
+        resume();
         if (socket != null)
         {
             socket.close();
         }
     }
 
+    /**
+     * Holds up the delivery of messages, which stops the connection being read until
+     * {@link #resume} is called
+     */
+    @Override
+    public boolean pause()
+    {
+        synchronized (pauseLock)
+        {
+            if (!paused)
+            {
+                logger.info("Server comms: Pausing reading of messages");
+                paused = true;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void resume()
+    {
+        synchronized (pauseLock)
+        {
+            if (paused)
+            {
+                logger.info("Server comms: Resuming reading of messages");
+                paused = false;
+                pauseLock.notifyAll();
+            }
+        }
+    }
+
+    private void awaitResume()
+    {
+        synchronized (pauseLock)
+        {
+            while (paused)
+            {
+                try
+                {
+                    pauseLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,70 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api.crawl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.function.BiConsumer;
+
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.abiquo.server.core.cloud.VirtualMachineState;
+import com.abiquo.server.core.cloud.VirtualMachinesDto;
+import com.abiquo.server.core.enterprise.EnterpriseDto;
+import com.abiquo.server.core.enterprise.EnterprisesDto;
+
+/**
+ * Discovers virtual machines through the flat listing of the virtual machines of each enterprise,
+ * which covers every virtual appliance of the enterprise in a single collection. This needs one
+ * request per enterprise (plus paging) regardless of the size of the infrastructure, but the
+ * listing doesn't say which machine each virtual machine runs on.
+ * <p>
+ * The listing also includes virtual machines that have never been deployed. These are skipped so
+ * that the cache holds the same virtual machines as with the {@link HierarchyCrawlStrategy}.
+ */
+public class EnterpriseCrawlStrategy implements VMCrawlStrategy
+{
+    @Override
+    public String getName()
+    {
+        return "enterprise";
+    }
+
+    @Override
+    public void crawl(final ResourceReader reader,
+        final BiConsumer<VirtualMachineDto, String> consumer)
+    {
+        for (EnterpriseDto enterprise : reader.list("admin/enterprises", EnterprisesDto.class))
+        {
+            RESTLink vmsLink =
+                checkNotNull(enterprise.searchLink("virtualmachines"),
+                    "Missing 'virtualmachines' link from enterprise %s. Should be here.",
+                    enterprise.getName());
+            for (VirtualMachineDto vm : reader.follow(vmsLink, VirtualMachinesDto.class))
+            {
+                if (vm.getState() != VirtualMachineState.NOT_ALLOCATED)
+                {
+                    consumer.accept(vm, null);
+                }
+            }
+        }
+    }
+}
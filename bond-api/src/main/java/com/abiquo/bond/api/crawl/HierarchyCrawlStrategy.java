@@ -0,0 +1,78 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api.crawl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.function.BiConsumer;
+
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.abiquo.server.core.cloud.VirtualMachinesDto;
+import com.abiquo.server.core.infrastructure.DatacenterDto;
+import com.abiquo.server.core.infrastructure.DatacentersDto;
+import com.abiquo.server.core.infrastructure.MachineDto;
+import com.abiquo.server.core.infrastructure.MachinesDto;
+import com.abiquo.server.core.infrastructure.RackDto;
+import com.abiquo.server.core.infrastructure.RacksDto;
+
+/**
+ * Discovers virtual machines by walking the infrastructure: datacenters, then racks, then machines,
+ * then the virtual machines deployed on each machine. This needs at least one request per rack and
+ * per machine but is the only strategy that knows which machine each virtual machine runs on.
+ */
+public class HierarchyCrawlStrategy implements VMCrawlStrategy
+{
+    @Override
+    public String getName()
+    {
+        return "hierarchy";
+    }
+
+    @Override
+    public void crawl(final ResourceReader reader,
+        final BiConsumer<VirtualMachineDto, String> consumer)
+    {
+        for (DatacenterDto dc : reader.list("admin/datacenters", DatacentersDto.class))
+        {
+            RESTLink racksLink =
+                checkNotNull(dc.searchLink("racks"),
+                    "Missing 'racks' link from datacenter %s. Should be here.", dc.getName());
+            for (RackDto rack : reader.follow(racksLink, RacksDto.class))
+            {
+                RESTLink machinesLink =
+                    checkNotNull(rack.searchLink("machines"),
+                        "Missing 'machines' link from rack %s. Should be here.", rack.getName());
+                for (MachineDto machine : reader.follow(machinesLink, MachinesDto.class))
+                {
+                    RESTLink vmsLink =
+                        checkNotNull(machine.searchLink("virtualmachines"),
+                            "Missing 'virtualmachines' link from machine %s (%s). Should be here.",
+                            machine.getName(), machine.getIp());
+                    for (VirtualMachineDto vm : reader.follow(vmsLink, VirtualMachinesDto.class))
+                    {
+                        consumer.accept(vm, machine.getName());
+                    }
+                }
+            }
+        }
+    }
+}
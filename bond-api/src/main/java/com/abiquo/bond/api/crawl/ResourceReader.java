@@ -0,0 +1,52 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api.crawl;
+
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.model.transport.SingleResourceTransportDto;
+import com.abiquo.model.transport.WrapperDto;
+
+/**
+ * Gives a {@link VMCrawlStrategy} access to the collections of the Abiquo API. Every page fetched
+ * by the returned Iterables counts as one request.
+ */
+public interface ResourceReader
+{
+    /**
+     * Lists a collection identified by its path relative to the base of the API
+     * 
+     * @param path path of the collection, p.e: admin/datacenters
+     * @param wrapperDtoClass Wrapper dto class that contains each page of the collection
+     * @return all the elements of the collection
+     */
+    <T extends SingleResourceTransportDto> Iterable<T> list(String path,
+        Class< ? extends WrapperDto<T>> wrapperDtoClass);
+
+    /**
+     * Lists a collection identified by a link returned in an earlier response
+     * 
+     * @param link link to the collection
+     * @param wrapperDtoClass Wrapper dto class that contains each page of the collection
+     * @return all the elements of the collection
+     */
+    <T extends SingleResourceTransportDto> Iterable<T> follow(RESTLink link,
+        Class< ? extends WrapperDto<T>> wrapperDtoClass);
+}
@@ -0,0 +1,47 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api.crawl;
+
+import java.util.function.BiConsumer;
+
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+
+/**
+ * A way of discovering all the deployed virtual machines known to the Abiquo API. Implementations
+ * must have a public no-argument constructor so that they can be chosen by class name in the
+ * client configuration.
+ */
+public interface VMCrawlStrategy
+{
+    /**
+     * @return a short name for the strategy, used in log messages and benchmark results
+     */
+    String getName();
+
+    /**
+     * Walks the API and passes every deployed virtual machine found to the consumer
+     * 
+     * @param reader access to the API collections
+     * @param consumer receiver of each virtual machine and the name of the machine it is deployed
+     *            on. The machine name is null if the strategy cannot determine it.
+     */
+    void crawl(ResourceReader reader, BiConsumer<VirtualMachineDto, String> consumer);
+}
@@ -0,0 +1,10 @@
+/**
+ * This package contains the strategies that can be used to discover the virtual machines to be held
+ * in the client's VM cache.
+ * <p>
+ * Different Abiquo topologies favour different ways of walking the API: a platform with a few large
+ * enterprises and many small machines is crawled much more cheaply through the enterprises than
+ * through the infrastructure. The <code>CrawlStrategyBenchmark</code> in the test sources can be
+ * used to compare the strategies against a local stand-in of a topology before choosing one.
+ */
+package com.abiquo.bond.api.crawl;
@@ -84,6 +84,49 @@ public class APIEvent implements Comparable<APIEvent>
         return originalEventDto;
     }
 
+    /**
+     * Returns the action that generated the event in the same form whether the event was received
+     * from the M server or read from the event store, where actions are prefixed with the
+     * component name (e.g. DEPLOY_FINISH rather than VIRTUAL_MACHINE_DEPLOY_FINISH).
+     * 
+     * @return the upper case action, or null if the original event doesn't have one
+     */
+    public String getAction()
+    {
+        if (originalEvent != null)
+        {
+            return originalEvent.getAction() != null ? originalEvent.getAction().toUpperCase()
+                : null;
+        }
+        String action = originalEventDto.getActionPerformed();
+        if (action == null)
+        {
+            return null;
+        }
+        action = action.toUpperCase();
+        String component = originalEventDto.getComponent();
+        if (component != null && action.startsWith(component.toUpperCase() + "_"))
+        {
+            action = action.substring(component.length() + 1);
+        }
+        return action;
+    }
+
+    /**
+     * Returns an identifier of the entity the event relates to.
+     * 
+     * @return the entity identifier of the original event, or null if it doesn't have one
+     */
+    public String getEntity()
+    {
+        if (originalEvent != null)
+        {
+            return originalEvent.getEntityIdentifier().orNull();
+        }
+        return originalEventDto.getEntityId() != null ? String.valueOf(originalEventDto
+            .getEntityId()) : null;
+    }
+
     @Override
     public String toString()
     {
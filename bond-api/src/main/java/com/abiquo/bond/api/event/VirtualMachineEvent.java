@@ -50,6 +50,8 @@ public class VirtualMachineEvent extends APIEvent
 
     protected String vmname;
 
+    protected Integer vmid;
+
     protected String hypervisorname;
 
     protected String hypervisorip;
@@ -72,6 +74,8 @@ public class VirtualMachineEvent extends APIEvent
 
     private EnumSet<VMBackupConfiguration> reqCfgs;
 
+    private Map<String, Object> vmMetadata;
+
     /**
      * Extracts the name of the machine and the backup configuration data from the supplied
      * VirtualMachineDto instance
@@ -90,6 +94,10 @@ public class VirtualMachineEvent extends APIEvent
             {
                 vmname = vmdetails.getName();
             }
+            if (vmid == null)
+            {
+                vmid = vmdetails.getId();
+            }
             Map<String, Object> metadata = vmdetails.getMetadata();
             extractBackupData(metadata);
         }
@@ -98,6 +106,7 @@ public class VirtualMachineEvent extends APIEvent
     public VirtualMachineEvent(final Event event)
     {
         super(event);
+        vmid = idFromEntity(event.getEntityIdentifier().orNull());
         Map<String, Object> details = getEventDetails(event);
         if (!details.isEmpty())
         {
@@ -136,6 +145,7 @@ public class VirtualMachineEvent extends APIEvent
     {
         super(event);
         vmname = event.getVirtualMachine();
+        vmid = event.getIdVirtualMachine();
         hypervisorname = event.getPhysicalMachine();
     }
 
@@ -144,6 +154,39 @@ public class VirtualMachineEvent extends APIEvent
         return vmname;
     }
 
+    /**
+     * @return the id of the VM, or null if it isn't known. Unlike the name, which is only unique
+     *         within an enterprise, the id identifies the VM across the whole platform.
+     */
+    public Integer getVMId()
+    {
+        return vmid;
+    }
+
+    /**
+     * Virtual machine events are identified by the id of the VM, taken from the event store record
+     * for replayed events and from the entity identifier for events received from the M server, so
+     * that both identify the VM in the same way. The name of the VM is only used when the id isn't
+     * known.
+     */
+    @Override
+    public String getEntity()
+    {
+        if (vmid != null)
+        {
+            return String.valueOf(vmid);
+        }
+        return vmname != null ? vmname : super.getEntity();
+    }
+
+    /**
+     * @return the VM metadata the event was built with, or null if none was available
+     */
+    public Map<String, Object> getMetadata()
+    {
+        return vmMetadata;
+    }
+
     public String getBackupDate()
     {
         return backupDate;
@@ -168,6 +211,30 @@ public class VirtualMachineEvent extends APIEvent
         return hypervisors;
     }
 
+    /**
+     * Extracts the VM id from the entity identifier of an event received from the M server, which
+     * is the URI of the VM or just its id.
+     * 
+     * @return the id of the VM, or null if the identifier doesn't hold one
+     */
+    public static Integer idFromEntity(final String entity)
+    {
+        if (entity == null)
+        {
+            return null;
+        }
+        String id = entity.substring(entity.lastIndexOf('/') + 1);
+        try
+        {
+            return Integer.valueOf(id);
+        }
+        catch (NumberFormatException e)
+        {
+            logger.debug("No VM id in entity identifier {}", entity);
+            return null;
+        }
+    }
+
     private Map<String, Object> getEventDetails(final Event event)
     {
         Optional< ? extends EventDetails> optVMDetails = event.getDetails();
@@ -190,6 +257,7 @@ public class VirtualMachineEvent extends APIEvent
     @SuppressWarnings("unchecked")
     private void extractBackupData(final Map<String, Object> metadata)
     {
+        vmMetadata = metadata;
         if (metadata != null)
         {
             Map<String, Object> submetadata =
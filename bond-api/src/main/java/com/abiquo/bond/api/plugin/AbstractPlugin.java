@@ -26,6 +26,8 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +52,10 @@ import com.abiquo.bond.api.event.UndeployVMEvent;
  * processes them in the run method. It decides how to process events by checking for annotated
  * methods and mapping these to the appropriate event type.
  * <p>
+ * An annotated method may return a {@link CompletionStage}, in which case the event is only
+ * considered processed once the stage completes, and the dispatcher thread is free to move on in
+ * the meantime.
+ * <p>
  * The supported annotations can be found in the com.abiquo.bond.api.annotations package.
  */
 public abstract class AbstractPlugin implements PluginInterface
@@ -167,14 +173,28 @@ public abstract class AbstractPlugin implements PluginInterface
     }
 
     /**
-     * Works out which method to use to process the plugin and then executes that method..
+     * Works out which method to use to process the plugin and then executes that method. If the
+     * method returns a {@link CompletionStage} this waits for it to complete.
      *
      * @return the result of the event processing
      */
     @Override
     public APIEventResult processEvent(final APIEvent event)
     {
-        APIEventResult result;
+        // The future is never completed exceptionally, failures are returned as results
+        return processEventAsync(event).join();
+    }
+
+    /**
+     * Works out which method to use to process the plugin and then executes that method. If the
+     * method returns a {@link CompletionStage} the result is completed when the stage completes.
+     *
+     * @return a future completed with the result of the event processing
+     */
+    @Override
+    public CompletableFuture<APIEventResult> processEventAsync(final APIEvent event)
+    {
+        CompletableFuture<APIEventResult> result = new CompletableFuture<>();
         if (mapEventToMethod.containsKey(event.getClass()))
         {
             logger.debug("Adding {} to queue", event.toString());
@@ -182,23 +202,37 @@ public abstract class AbstractPlugin implements PluginInterface
             logger.debug("Processing {} with method {}", event.toString(), eventhandler.getName());
             try
             {
-                eventhandler.invoke(this, new Object[] {event});
-                result = new APIEventResult(APIEventResultState.COMPLETE, event);
+                Object returned = eventhandler.invoke(this, new Object[] {event});
+                if (returned instanceof CompletionStage)
+                {
+                    ((CompletionStage< ? >) returned).whenComplete((value, t) -> result
+                        .complete(t == null ? new APIEventResult(APIEventResultState.COMPLETE,
+                            event) : failed(event, t)));
+                }
+                else
+                {
+                    result.complete(new APIEventResult(APIEventResultState.COMPLETE, event));
+                }
             }
             catch (Throwable t)
             {
-                String msg = format("Error processing event: %s", event.toString());
-                notifyWrapper(msg, t);
-                result = new APIEventResult(APIEventResultState.FAILED, event, msg, t);
+                result.complete(failed(event, t));
             }
         }
         else
         {
-            result = new APIEventResult(APIEventResultState.EVENTTYPENOTSUPPORTED, event);
+            result.complete(new APIEventResult(APIEventResultState.EVENTTYPENOTSUPPORTED, event));
         }
         return result;
     }
 
+    private APIEventResult failed(final APIEvent event, final Throwable t)
+    {
+        String msg = format("Error processing event: %s", event.toString());
+        notifyWrapper(msg, t);
+        return new APIEventResult(APIEventResultState.FAILED, event, msg, t);
+    }
+
     @Override
     public boolean handlesEventType(final Class< ? extends APIEvent> event)
     {
@@ -20,8 +20,14 @@
  */
 package com.abiquo.bond.api.plugin;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.abiquo.bond.api.VMCache;
 import com.abiquo.bond.api.event.APIEvent;
 import com.abiquo.bond.api.event.APIEventResult;
+import com.abiquo.bond.api.event.APIEventResultState;
 
 /**
  * This is the interface that any plugin for the sample Outbound API Client should implement. Users
@@ -42,6 +48,63 @@ public interface PluginInterface
      */
     APIEventResult processEvent(APIEvent event);
 
+    /**
+     * Process an event received from the M server without holding up a dispatcher thread while it
+     * completes. Plugins that make remote calls can override this to return as soon as the call has
+     * been started; the client won't pass the plugin any further events for the same VM until the
+     * returned future completes. The default implementation calls processEvent and returns its
+     * result as a completed future.
+     * 
+     * @param event the event to process
+     * @return a future completed with the result of the processing
+     */
+    default CompletableFuture<APIEventResult> processEventAsync(final APIEvent event)
+    {
+        CompletableFuture<APIEventResult> result = new CompletableFuture<>();
+        try
+        {
+            result.complete(processEvent(event));
+        }
+        catch (RuntimeException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Process a batch of events received from the M server. The client only calls this when
+     * batching has been configured, passing events in the order they were received; events for the
+     * same VM are never split across batches that run at the same time. Plugins that can submit
+     * work to their third party app in bulk can override this to amortize the cost of each call.
+     * The default implementation calls processEvent for each event in turn, and an exception from
+     * one event only fails that event.
+     * <p>
+     * Implementations should report the failure of an event in its result rather than by throwing:
+     * an exception fails every event of the batch, including any already processed, and those
+     * events may then be retried.
+     * 
+     * @param events the events to process
+     * @return the result for each event, in the same order as the events
+     */
+    default List<APIEventResult> processEvents(final List<APIEvent> events)
+    {
+        List<APIEventResult> results = new ArrayList<>(events.size());
+        for (APIEvent event : events)
+        {
+            try
+            {
+                results.add(processEvent(event));
+            }
+            catch (RuntimeException e)
+            {
+                results.add(new APIEventResult(APIEventResultState.FAILED, event, e.getMessage(),
+                    e));
+            }
+        }
+        return results;
+    }
+
     /**
      * Checks whether a plugin wants to handle a specific type of event. This method should be used
      * if the processEvent might take some time to run and hence it is better to call it only when
@@ -74,6 +137,18 @@ public interface PluginInterface
      */
     void startup() throws PluginException;
 
+    /**
+     * Gives the plugin access to the cache of VMs known to the client so that it can look VMs up
+     * by id, name, hypervisor or enterprise. This is called before
+     * {@link com.abiquo.bond.api.plugin.PluginInterface#startup}. The default implementation
+     * ignores the cache.
+     *
+     * @param cache read-only view of the VM cache
+     */
+    default void linkToVMCache(final VMCache cache)
+    {
+    }
+
     /**
      * Cancels the plugin
      */
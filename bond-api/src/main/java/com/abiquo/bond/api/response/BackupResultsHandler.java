@@ -23,14 +23,31 @@ package com.abiquo.bond.api.response;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import com.abiquo.bond.api.VMCache;
+import com.abiquo.bond.api.VMCacheListener;
+
 /**
  * A BackupResultsHandler is a class that retrieves results from the backup system and adds them to
  * a queue provided by the client. The client will then update the Abiquo server with any results it
  * finds on the queue.
+ * <p>
+ * Each handler is subscribed to the VM cache, so it is told about every VM added, removed or
+ * updated. Handlers can use these changes to maintain their own indexes of the VMs they need to
+ * poll for, rather than iterating over every VM name on each run.
  */
-public interface BackupResultsHandler extends Runnable
+public interface BackupResultsHandler extends Runnable, VMCacheListener
 {
     void setQueue(LinkedBlockingQueue<VMBackupRestorePairStatusList> queue);
 
     void linkToVMCache(Set<String> cache);
+
+    /**
+     * Gives the handler access to the full VM cache so that it can look VMs up by id, name,
+     * hypervisor or enterprise. The default implementation ignores the cache.
+     *
+     * @param cache read-only view of the VM cache
+     */
+    default void linkToVMCache(final VMCache cache)
+    {
+    }
 }
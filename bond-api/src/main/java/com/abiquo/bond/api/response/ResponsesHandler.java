@@ -101,6 +101,8 @@ public class ResponsesHandler extends APIConnection implements Runnable
             BackupResultsHandler handler = plugin.getResultsHandler();
             handler.setQueue(resultQueue);
             handler.linkToVMCache(mapNameToVMLinks.getVMNames());
+            handler.linkToVMCache(mapNameToVMLinks);
+            mapNameToVMLinks.subscribe(handler);
             resultsfetchers.add(scheduler.scheduleAtFixedRate(handler, 0, timeperiod, timeunit));
             logger.debug("Backup results handler {} running at {} {} intervals",
                 new Object[] {handler.getClass(), timeperiod, timeunit.toString().toLowerCase()});
@@ -130,7 +132,9 @@ public class ResponsesHandler extends APIConnection implements Runnable
                 String vmName = event.getVmName();
                 List<VMBackupRestorePairStatus> pairStatusList = event.getPairStatusesList();
                 Optional<RESTLink> optlink =
-                    mapNameToVMLinks.getLink(vmName, NameToVMLinks.VM_LINK_METADATA);
+                    event.getVmId() != null ? mapNameToVMLinks.getLink(event.getVmId(),
+                        NameToVMLinks.VM_LINK_METADATA) : mapNameToVMLinks.getLink(vmName,
+                        NameToVMLinks.VM_LINK_METADATA);
 
                 if (optlink.isPresent())
                 {
@@ -26,15 +26,35 @@ public class VMBackupRestorePairStatusList
 {
     public final String vmName;
 
+    public final Integer vmId;
+
     public final List<VMBackupRestorePairStatus> pairStatusesList;
 
     public VMBackupRestorePairStatusList(final String vmName,
         final List<VMBackupRestorePairStatus> pairStatusesList)
     {
+        this(null, vmName, pairStatusesList);
+    }
+
+    /**
+     * @param vmId id of the vm. Handlers should provide it whenever it is known as vm names are
+     *            only unique within an enterprise.
+     * @param vmName name of the vm
+     * @param pairStatusesList backup and restore results for the vm
+     */
+    public VMBackupRestorePairStatusList(final Integer vmId, final String vmName,
+        final List<VMBackupRestorePairStatus> pairStatusesList)
+    {
+        this.vmId = vmId;
         this.vmName = vmName;
         this.pairStatusesList = pairStatusesList;
     }
 
+    public Integer getVmId()
+    {
+        return vmId;
+    }
+
     public String getVmName()
     {
         return vmName;
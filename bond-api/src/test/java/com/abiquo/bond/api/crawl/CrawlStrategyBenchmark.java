@@ -0,0 +1,302 @@
+/**
+ * The Abiquo Platform
+ * Cloud management application for hybrid clouds
+ * Copyright (C) 2008 - Abiquo Holdings S.L.
+ *
+ * This application is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU LESSER GENERAL PUBLIC
+ * LICENSE as published by the Free Software Foundation under
+ * version 3 of the License
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * LESSER GENERAL PUBLIC LICENSE v.3 for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+package com.abiquo.bond.api.crawl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.abiquo.model.rest.RESTLink;
+import com.abiquo.model.transport.SingleResourceTransportDto;
+import com.abiquo.model.transport.WrapperDto;
+import com.abiquo.server.core.cloud.VirtualMachineDto;
+import com.abiquo.server.core.cloud.VirtualMachineState;
+import com.abiquo.server.core.enterprise.EnterpriseDto;
+import com.abiquo.server.core.infrastructure.DatacenterDto;
+import com.abiquo.server.core.infrastructure.MachineDto;
+import com.abiquo.server.core.infrastructure.RackDto;
+import com.google.common.base.Throwables;
+
+/**
+ * Compares the number of API requests and the wall time needed by each {@link VMCrawlStrategy} to
+ * discover every VM of a topology. The API is replaced by a local stand-in that serves an in-memory
+ * topology with a fixed latency per page, so the benchmark can be run without an Abiquo server to
+ * choose the cheapest strategy for a given platform shape.
+ * <p>
+ * Usage: <code>CrawlStrategyBenchmark [datacenters racks machines vmsPerMachine enterprises
+ * latencyMillis pageSize]</code>
+ */
+public class CrawlStrategyBenchmark
+{
+    private static final int RUNS = 3;
+
+    public static void main(final String[] args)
+    {
+        int[] params = {2, 4, 10, 8, 20, 5, 100};
+        for (int i = 0; i < args.length && i < params.length; i++)
+        {
+            params[i] = Integer.parseInt(args[i]);
+        }
+        LocalTopology topology =
+            new LocalTopology(params[0], params[1], params[2], params[3], params[4], params[5],
+                params[6]);
+        System.out.printf(
+            "Topology: %d datacenters, %d racks each, %d machines each, %d vms per machine, "
+                + "%d enterprises, %dms per request, %d elements per page%n", params[0],
+            params[1], params[2], params[3], params[4], params[5], params[6]);
+
+        List<VMCrawlStrategy> strategies =
+            Arrays.<VMCrawlStrategy> asList(new HierarchyCrawlStrategy(),
+                new EnterpriseCrawlStrategy());
+        System.out.printf("%-12s %10s %10s %12s%n", "strategy", "vms", "requests", "wall ms");
+        for (VMCrawlStrategy strategy : strategies)
+        {
+            Result best = null;
+            for (int run = 0; run < RUNS; run++)
+            {
+                Result result = run(strategy, topology);
+                if (best == null || result.wallMillis < best.wallMillis)
+                {
+                    best = result;
+                }
+            }
+            System.out.printf("%-12s %10d %10d %12d%n", strategy.getName(), best.vms,
+                best.requests, best.wallMillis);
+        }
+    }
+
+    static Result run(final VMCrawlStrategy strategy, final LocalTopology topology)
+    {
+        long requestsBefore = topology.getRequests();
+        long[] vms = {0};
+        long start = System.nanoTime();
+        strategy.crawl(topology, (vm, hypervisor) -> vms[0]++);
+        long wall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new Result(vms[0], topology.getRequests() - requestsBefore, wall);
+    }
+
+    static class Result
+    {
+        final long vms;
+
+        final long requests;
+
+        final long wallMillis;
+
+        Result(final long vms, final long requests, final long wallMillis)
+        {
+            this.vms = vms;
+            this.requests = requests;
+            this.wallMillis = wallMillis;
+        }
+    }
+
+    /**
+     * In-memory stand-in for the Abiquo API. Every deployed VM is reachable both through the
+     * infrastructure and through its enterprise; each enterprise also has one VM that has never
+     * been deployed.
+     */
+    static class LocalTopology implements ResourceReader
+    {
+        private final Map<String, List< ? extends SingleResourceTransportDto>> collections =
+            new HashMap<>();
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final long latencyMillis;
+
+        private final int pageSize;
+
+        LocalTopology(final int datacenters, final int racks, final int machines,
+            final int vmsPerMachine, final int enterprises, final long latencyMillis,
+            final int pageSize)
+        {
+            this.latencyMillis = latencyMillis;
+            this.pageSize = Math.max(1, pageSize);
+
+            List<EnterpriseDto> enterpriseList = new ArrayList<>();
+            List<List<VirtualMachineDto>> vmsByEnterprise = new ArrayList<>();
+            for (int e = 0; e < enterprises; e++)
+            {
+                String href = "admin/enterprises/" + e;
+                EnterpriseDto enterprise = new EnterpriseDto();
+                enterprise.setId(e);
+                enterprise.setName("enterprise-" + e);
+                enterprise.addLink(new RESTLink("virtualmachines", href
+                    + "/action/virtualmachines"));
+                enterpriseList.add(enterprise);
+                List<VirtualMachineDto> vms = new ArrayList<>();
+                vms.add(vm(-e - 1, href, VirtualMachineState.NOT_ALLOCATED));
+                vmsByEnterprise.add(vms);
+                collections.put(href + "/action/virtualmachines", vms);
+            }
+            collections.put("admin/enterprises", enterpriseList);
+
+            int vmid = 0;
+            List<DatacenterDto> dcList = new ArrayList<>();
+            for (int d = 0; d < datacenters; d++)
+            {
+                String dcHref = "admin/datacenters/" + d;
+                DatacenterDto dc = new DatacenterDto();
+                dc.setName("datacenter-" + d);
+                dc.addLink(new RESTLink("racks", dcHref + "/racks"));
+                dcList.add(dc);
+                List<RackDto> rackList = new ArrayList<>();
+                for (int r = 0; r < racks; r++)
+                {
+                    String rackHref = dcHref + "/racks/" + r;
+                    RackDto rack = new RackDto();
+                    rack.setName("rack-" + d + "-" + r);
+                    rack.addLink(new RESTLink("machines", rackHref + "/machines"));
+                    rackList.add(rack);
+                    List<MachineDto> machineList = new ArrayList<>();
+                    for (int m = 0; m < machines; m++)
+                    {
+                        String machineHref = rackHref + "/machines/" + m;
+                        MachineDto machine = new MachineDto();
+                        machine.setName("machine-" + d + "-" + r + "-" + m);
+                        machine.addLink(new RESTLink("virtualmachines", machineHref
+                            + "/virtualmachines"));
+                        machineList.add(machine);
+                        List<VirtualMachineDto> vmList = new ArrayList<>();
+                        for (int v = 0; v < vmsPerMachine; v++, vmid++)
+                        {
+                            int e = enterprises > 0 ? vmid % enterprises : 0;
+                            VirtualMachineDto vm =
+                                vm(vmid, "admin/enterprises/" + e, VirtualMachineState.ON);
+                            vmList.add(vm);
+                            if (enterprises > 0)
+                            {
+                                vmsByEnterprise.get(e).add(vm);
+                            }
+                        }
+                        collections.put(machineHref + "/virtualmachines", vmList);
+                    }
+                    collections.put(rackHref + "/machines", machineList);
+                }
+                collections.put(dcHref + "/racks", rackList);
+            }
+            collections.put("admin/datacenters", dcList);
+        }
+
+        private static VirtualMachineDto vm(final int id, final String enterpriseHref,
+            final VirtualMachineState state)
+        {
+            VirtualMachineDto vm = new VirtualMachineDto();
+            vm.setId(id);
+            vm.setName("ABQ_" + id);
+            vm.setState(state);
+            vm.addLink(new RESTLink("enterprise", enterpriseHref));
+            vm.addLink(new RESTLink("metadata", "cloud/virtualmachines/" + id + "/metadata"));
+            return vm;
+        }
+
+        long getRequests()
+        {
+            return requests.get();
+        }
+
+        @Override
+        public <T extends SingleResourceTransportDto> Iterable<T> list(final String path,
+            final Class< ? extends WrapperDto<T>> wrapperDtoClass)
+        {
+            return serve(path);
+        }
+
+        @Override
+        public <T extends SingleResourceTransportDto> Iterable<T> follow(final RESTLink link,
+            final Class< ? extends WrapperDto<T>> wrapperDtoClass)
+        {
+            return serve(link.getHref());
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> Iterable<T> serve(final String href)
+        {
+            List<T> collection = (List<T>) collections.get(href);
+            if (collection == null)
+            {
+                throw new IllegalArgumentException("Unknown collection " + href);
+            }
+            return () -> new PagedIterator<>(collection);
+        }
+
+        /**
+         * Charges one request, and its latency, each time a new page is started. An empty
+         * collection still costs one request.
+         */
+        private class PagedIterator<T> implements Iterator<T>
+        {
+            private final List<T> collection;
+
+            private int next = 0;
+
+            PagedIterator(final List<T> collection)
+            {
+                this.collection = collection;
+                request();
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < collection.size();
+            }
+
+            @Override
+            public T next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                if (next > 0 && next % pageSize == 0)
+                {
+                    request();
+                }
+                return collection.get(next++);
+            }
+
+            private void request()
+            {
+                requests.incrementAndGet();
+                if (latencyMillis > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(latencyMillis);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw Throwables.propagate(e);
+                    }
+                }
+            }
+        }
+    }
+}